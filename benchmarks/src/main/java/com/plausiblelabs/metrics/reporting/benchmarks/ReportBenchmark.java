@@ -0,0 +1,181 @@
+package com.plausiblelabs.metrics.reporting.benchmarks;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.plausiblelabs.metrics.reporting.CloudWatchReporter;
+import com.plausiblelabs.metrics.reporting.DimensionAdder;
+import com.plausiblelabs.metrics.reporting.MetricSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Measures the cost of a single {@link CloudWatchReporter} tick with the network replaced by a sink that discards
+ * every batch. Run with the GC profiler to see the allocation per tick as well as its duration:</p>
+ *
+ * <pre>java -jar target/benchmarks.jar ReportBenchmark -prof gc</pre>
+ *
+ * <p>Parameters can be overridden with <code>-p</code>, e.g. <code>-p metricCount=50000 -p mix=timers</code>.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+    /** The number of metrics in the registry */
+    @Param({"100", "1000", "10000", "50000"})
+    public int metricCount;
+
+    /** Which metric types to register: one of the types, or <code>mixed</code> for an even split across all of them */
+    @Param({"mixed", "timers"})
+    public String mix;
+
+    /** The number of dimension adders, each adding one dimension to every metric */
+    @Param({"0", "4"})
+    public int dimensionAdders;
+
+    /** The number of percentiles sent for each histogram and timer */
+    @Param({"3", "9"})
+    public int percentiles;
+
+    /** Values recorded in each histogram and timer before measuring */
+    private static final int SAMPLES_PER_METRIC = 64;
+
+    private static final double[] ALL_PERCENTILES = {.5, .75, .9, .95, .98, .99, .999, .9999, .99999};
+
+    private static final String[] TYPES = {"gauges", "counters", "histograms", "meters", "timers"};
+
+    private CountingSink sink;
+    private CloudWatchReporter reporter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MetricRegistry registry = new MetricRegistry();
+        Random random = new Random(42);
+        for (int i = 0; i < metricCount; i++) {
+            String type = "mixed".equals(mix) ? TYPES[i % TYPES.length] : mix;
+            register(registry, type, "benchmark." + type + "." + i, random);
+        }
+
+        double[] toSend = new double[percentiles];
+        System.arraycopy(ALL_PERCENTILES, 0, toSend, 0, percentiles);
+
+        sink = new CountingSink();
+        CloudWatchReporter.Enabler enabler = new CloudWatchReporter.Enabler("benchmark", sink)
+            .withRegistry(registry)
+            .withJVMMemory(false)
+            .withPercentiles(toSend);
+        for (int i = 0; i < dimensionAdders; i++) {
+            enabler.withDimensionAdder(new ConstantDimensionAdder("Dimension" + i, "value" + i));
+        }
+        reporter = enabler.build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        reporter.stop();
+    }
+
+    @Benchmark
+    public long report() {
+        reporter.report();
+        return sink.datums.get();
+    }
+
+    private static void register(MetricRegistry registry, String type, String name, Random random) {
+        if ("gauges".equals(type)) {
+            final double value = random.nextDouble();
+            registry.register(name, new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return value;
+                }
+            });
+        } else if ("counters".equals(type)) {
+            registry.counter(name).inc(random.nextInt(1000));
+        } else if ("histograms".equals(type)) {
+            Histogram histogram = registry.histogram(name);
+            for (int i = 0; i < SAMPLES_PER_METRIC; i++) {
+                histogram.update(random.nextInt(10000));
+            }
+        } else if ("meters".equals(type)) {
+            Meter meter = registry.meter(name);
+            meter.mark(random.nextInt(1000));
+        } else if ("timers".equals(type)) {
+            Timer timer = registry.timer(name);
+            for (int i = 0; i < SAMPLES_PER_METRIC; i++) {
+                timer.update(random.nextInt(10000), TimeUnit.MICROSECONDS);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown metric type " + type);
+        }
+    }
+
+    /**
+     * Counts the datums it's asked to send without sending them anywhere.
+     */
+    static class CountingSink implements MetricSink {
+        final AtomicLong datums = new AtomicLong();
+
+        @Override
+        public Future<?> write(List<MetricDatum> batch) {
+            datums.addAndGet(batch.size());
+            return null;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class ConstantDimensionAdder implements DimensionAdder {
+        private final List<Dimension> dimensions;
+
+        ConstantDimensionAdder(String name, String value) {
+            List<Dimension> generated = new ArrayList<Dimension>();
+            generated.add(new Dimension().withName(name).withValue(value));
+            this.dimensions = Collections.unmodifiableList(generated);
+        }
+
+        @Override
+        public Collection<Dimension> generate(String name, Metric metric) {
+            return dimensions;
+        }
+
+        @Override
+        public Collection<Dimension> generateJVMDimensions() {
+            return dimensions;
+        }
+    }
+}
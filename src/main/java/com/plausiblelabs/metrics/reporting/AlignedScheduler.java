@@ -0,0 +1,92 @@
+package com.plausiblelabs.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs a tick at each multiple of the period in wall-clock time, offset by a fixed jitter, so a tick with a one
+ * minute period and 7 seconds of jitter runs at 7 seconds past every minute. The tick is told which boundary it was
+ * due at, so values can be stamped with it however late the tick actually runs.</p>
+ *
+ * <p>Each tick is scheduled from the clock when the previous one finishes rather than at a fixed rate, so ticks
+ * don't drift away from the boundaries. A tick that overruns the next boundary skips it rather than running twice
+ * in a row.</p>
+ */
+class AlignedScheduler implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(AlignedScheduler.class);
+
+    interface Tick {
+        void run(long boundaryMillis);
+    }
+
+    private final long periodMillis;
+    private final long jitterMillis;
+    private final Tick tick;
+    private final ScheduledExecutorService executor;
+    private long nextBoundary;
+
+    AlignedScheduler(final String threadName, long periodMillis, long jitterMillis, Tick tick) {
+        this.periodMillis = periodMillis;
+        this.jitterMillis = jitterMillis;
+        this.tick = tick;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the latest boundary at or before <code>nowMillis</code>, once the jitter is allowed for
+     */
+    static long boundary(long nowMillis, long periodMillis, long jitterMillis) {
+        long shifted = nowMillis - jitterMillis;
+        return shifted - ((shifted % periodMillis) + periodMillis) % periodMillis;
+    }
+
+    void start() {
+        nextBoundary = boundary(System.currentTimeMillis(), periodMillis, jitterMillis) + periodMillis;
+        scheduleNext();
+    }
+
+    @Override
+    public void run() {
+        long due = nextBoundary;
+        try {
+            tick.run(due);
+        } catch (RuntimeException e) {
+            // Anything thrown would stop the schedule
+            LOG.error("Error running scheduled tick", e);
+        }
+        nextBoundary = Math.max(due + periodMillis,
+                                boundary(System.currentTimeMillis(), periodMillis, jitterMillis) + periodMillis);
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        long delay = Math.max(0, nextBoundary + jitterMillis - System.currentTimeMillis());
+        try {
+            executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException stopped) {
+            // Stopped while the tick ran
+        }
+    }
+
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,12 +3,11 @@ package com.plausiblelabs.metrics.reporting;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.cloudwatch.model.Dimension;
-import com.amazonaws.services.cloudwatch.model.MetricDatum;
-import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.Metric;
@@ -20,7 +19,11 @@ import com.codahale.metrics.Snapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -28,7 +31,13 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Reports metrics to <a href="http://aws.amazon.com/cloudwatch/">Amazon's CloudWatch</a> periodically.
@@ -50,6 +59,14 @@ public class CloudWatchReporter extends ScheduledReporter {
      */
     static final double LARGEST_SENDABLE = 1E108;
 
+    /**
+     * CloudWatch only supports its standard units, so meter rates are sent without a unit and this is sent as a
+     * <code>meterUnit</code> dimension instead. Rates are per second and events are assumed to be calls.
+     */
+    private static final String METER_UNIT = "calls/second";
+    // The most values written to the embedded metric format in one go
+    private static final int EMBEDDED_METRIC_BATCH_DATUMS = 10000;
+
     /**
      * <p>Creates or starts a CloudWatchReporter.</p>
      * <p>As CloudWatch charges 50 cents per unique metric, this reporter attempts to be parsimonious with the values
@@ -66,20 +83,57 @@ public class CloudWatchReporter extends ScheduledReporter {
 
         private long period = 1;
         private TimeUnit unit = TimeUnit.MINUTES;
+        private boolean alignSchedule;
+        private long maxJitterMillis;
+        private final List<MetricFilter> intervalFilters = new ArrayList<MetricFilter>();
+        private final List<Long> intervalMillis = new ArrayList<Long>();
+        private final List<MetricFilter> highResolutionFilters = new ArrayList<MetricFilter>();
 
         private boolean sendToCloudWatch = true;
+        private final List<MetricSink> sinks = new ArrayList<MetricSink>();
+        private boolean cacheDimensions;
 
         private double[] percentilesToSend = {.5, .95, .99};
         private boolean sendOneMinute = true, sendFiveMinute, sendFifteenMinute;
         private boolean sendMeterSummary;
         private boolean sendTimerLifetime;
         private boolean sendHistoLifetime;
+        private boolean sendStatisticSets;
+        private boolean sendDistributions;
+        private boolean sendDeltaCounts;
+        private boolean skipZeroDeltas;
+        private boolean skipUnchangedGauges;
+        private double gaugeEpsilon;
+        private long gaugeHeartbeatMillis;
         private boolean sendJVMMemory = true;
         private boolean sendJVMThreadState;
+        private boolean sendJVMMemoryPools;
+        private boolean sendJVMBufferPools;
+        private boolean sendJVMAllocationRate;
         private boolean sendGC;
+        private boolean gcNotifications;
         private StandardUnit durationUnit = StandardUnit.Milliseconds;
         private StandardUnit rateUnit = StandardUnit.Seconds;
 
+        private int maxRequestsInFlight = 1;
+        private int maxRequestsQueued = 16;
+        private int maxRequestDatums = 20;
+        private int maxRequestBytes = 40 * 1024;
+        private int collectionThreads;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private File spoolDirectory;
+        private long spoolMaxBytes;
+        private int spoolReplayRequestsPerSecond;
+        private OutputStream embeddedMetricStream;
+        private File embeddedMetricFile;
+        private long embeddedMetricMaxBytes;
+        private int embeddedMetricBackups;
+        private boolean reporterMetricsInJMX;
+        private boolean sendReporterMetrics;
+        private int maxSeriesPerMetric;
+        private int maxSeries;
+        private boolean collapseSeriesOverBudget;
+
         /**
          * Creates an Enabler that sends values in the given namespace to the given AWS account
          *
@@ -99,6 +153,19 @@ public class CloudWatchReporter extends ScheduledReporter {
             this.client = client;
         }
 
+        /**
+         * Creates an Enabler that only sends values to the given sink, without a CloudWatch client. Options that
+         * configure the client's requests, such as retries and spooling, have no effect.
+         *
+         * @param namespace the namespace. Must be non-null and not empty.
+         */
+        public Enabler(String namespace, MetricSink sink) {
+            this.namespace = namespace;
+            this.client = null;
+            this.sendToCloudWatch = false;
+            this.sinks.add(sink);
+        }
+
         /**
          * <p>The histogram and meter percentiles to send. If <code>.5</code> is included, it'll be reported as
          * <code>median</code>.This defaults to <code>.5, .95, and .99</code>.
@@ -172,7 +239,103 @@ public class CloudWatchReporter extends ScheduledReporter {
         }
 
         /**
-         * If JVM memory heap and permgen values should be sent. Enabled by default
+         * <p>If histograms and timers should be sent as a single CloudWatch statistic set instead of one value per
+         * percentile. Disabled by default.</p>
+         *
+         * <p>When enabled, each histogram or timer sends one datum named after the metric carrying the sample count,
+         * sum, minimum and maximum of its current snapshot. CloudWatch can aggregate these correctly across
+         * instances, and they replace the percentile and summary values configured through
+         * {@link #withPercentiles}, {@link #withHistogramSummary} and {@link #withTimerSummary}. Timer rates are
+         * still sent as configured.</p>
+         *
+         * <p>Statistic sets are only sent for metrics whose snapshots cover a single interval, such as those built on
+         * {@link HdrHistogramReservoir}. Other reservoirs, including Metrics' default exponentially decaying one, hold
+         * a sample of up to 1028 values that is resent tick after tick, so its size isn't the number of events in the
+         * interval and CloudWatch would aggregate inflated, duplicated statistics. Those metrics are sent as
+         * percentile and summary values as if this were disabled.</p>
+         *
+         * @param enabled if statistic sets should be sent.
+         * @return this Enabler.
+         */
+        public Enabler withStatisticSets(boolean enabled) {
+            this.sendStatisticSets = enabled;
+            return this;
+        }
+
+        /**
+         * <p>If histograms and timers should be sent as the distribution of values in their snapshot instead of one
+         * value per percentile. Disabled by default.</p>
+         *
+         * <p>When enabled, each histogram or timer sends one datum named after the metric, carrying up to 150
+         * distinct values and how often each was seen. Snapshots with more distinct values are grouped into
+         * log-linear buckets, each represented by the mean of its values. CloudWatch keeps the values, so it can
+         * compute true percentiles across every instance. This takes precedence over {@link #withStatisticSets}, and
+         * replaces the percentile and summary values in the same way.</p>
+         *
+         * <p>The values are added to requests by a handler the reporter adds to the client, as the SDK's
+         * <code>MetricDatum</code> doesn't have the fields.</p>
+         *
+         * @param enabled if distributions should be sent.
+         * @return this Enabler.
+         */
+        public Enabler withDistributions(boolean enabled) {
+            this.sendDistributions = enabled;
+            return this;
+        }
+
+        /**
+         * <p>If counters and meter counts should be sent as the change since the last successful send rather than
+         * the cumulative count. Disabled by default.</p>
+         *
+         * <p>Deltas can be summed across instances and don't drop when a process restarts. A count only becomes the
+         * baseline for the next delta once CloudWatch has accepted it, so a failed send is included in the following
+         * tick's delta.</p>
+         *
+         * @param enabled if deltas should be sent.
+         * @return this Enabler.
+         */
+        public Enabler withDeltaCounts(boolean enabled) {
+            this.sendDeltaCounts = enabled;
+            return this;
+        }
+
+        /**
+         * If deltas of zero should be skipped rather than sent. Only applies when {@link #withDeltaCounts} is
+         * enabled. Disabled by default.
+         *
+         * @param enabled if zero deltas should be skipped.
+         * @return this Enabler.
+         */
+        public Enabler withZeroDeltasSkipped(boolean enabled) {
+            this.skipZeroDeltas = enabled;
+            return this;
+        }
+
+        /**
+         * <p>Skips sending gauge values that are within <code>epsilon</code> of the last value sent for the gauge.
+         * Disabled by default.</p>
+         *
+         * <p>An unchanged value is still sent once <code>heartbeat</code> has passed since the gauge was last sent,
+         * so alarms on the gauge don't go to <code>INSUFFICIENT_DATA</code>. While enabled, the percentage of gauges
+         * skipped in each tick is sent as <code>cloudwatch_reporter.suppressed_gauges</code> with the JVM
+         * dimensions.</p>
+         *
+         * @param epsilon the largest change that's considered unchanged
+         * @param heartbeat the longest time a gauge may go unsent
+         * @param unit the unit of <code>heartbeat</code>
+         * @return this Enabler.
+         */
+        public Enabler withUnchangedGaugesSkipped(double epsilon, long heartbeat, TimeUnit unit) {
+            this.skipUnchangedGauges = true;
+            this.gaugeEpsilon = epsilon;
+            this.gaugeHeartbeatMillis = unit.toMillis(heartbeat);
+            return this;
+        }
+
+        /**
+         * If the JVM's heap and non-heap usage should be sent, as percentages of their maximums. Where there's no
+         * maximum, as is usual for non-heap memory, the percentage is of the memory committed instead. Enabled by
+         * default
          * @param enabled if the values should be sent
          * @return this Enabler.
          */
@@ -181,6 +344,40 @@ public class CloudWatchReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * If the usage of each JVM memory pool, such as eden, survivor, old generation, metaspace and code cache,
+         * should be sent, in bytes and as a percentage of the pool's maximum, or of what's committed to a pool without
+         * one. Disabled by default.
+         * @param enabled if the values should be sent
+         * @return this Enabler.
+         */
+        public Enabler withJVMMemoryPools(boolean enabled) {
+            this.sendJVMMemoryPools = enabled;
+            return this;
+        }
+
+        /**
+         * If the count, memory used and capacity of the JVM's direct and mapped buffer pools should be sent. Disabled
+         * by default.
+         * @param enabled if the values should be sent
+         * @return this Enabler.
+         */
+        public Enabler withJVMBufferPools(boolean enabled) {
+            this.sendJVMBufferPools = enabled;
+            return this;
+        }
+
+        /**
+         * If the rate the JVM's threads allocate heap memory should be sent, in bytes a second averaged over each
+         * period. Disabled by default. Nothing is sent on JVMs that don't measure thread allocation.
+         * @param enabled if the value should be sent
+         * @return this Enabler.
+         */
+        public Enabler withJVMAllocationRate(boolean enabled) {
+            this.sendJVMAllocationRate = enabled;
+            return this;
+        }
+
         /**
          * If JVM thread counts and states should be sent. Disabled by default.
          * @param enabled if the values should be sent
@@ -201,6 +398,27 @@ public class CloudWatchReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * <p>If garbage collections should also be counted as the JVM reports them, rather than only polled at each
+         * tick. Disabled by default, and only used along with {@link #withJVMGC}.</p>
+         *
+         * <p>Each tick then also sends, for every collector, the number of pauses, their total time and the longest
+         * pause since the previous tick; the bytes promoted to the old generation since the previous tick; and each
+         * memory pool's usage before and after the latest collection. This relies on the GC notifications emitted by
+         * HotSpot 7u4 and later, and does nothing on JVMs without them.</p>
+         *
+         * <p>The background cycles of concurrent collectors, such as CMS, ZGC and Shenandoah, mostly run alongside the
+         * application, so they aren't counted as pauses. They're sent as <code>concurrent_cycles</code> and
+         * <code>concurrent_cycle_time</code> instead, for the collectors that report them.</p>
+         *
+         * @param enabled if GC notifications should be listened to
+         * @return this Enabler.
+         */
+        public Enabler withJVMGCNotifications(boolean enabled) {
+            this.gcNotifications = enabled;
+            return this;
+        }
+
         /**
          * Use the given registry to fetch metrics. Defaults to <code>Metrics.defaultRegistry()</code>
          * @return this Enabler.
@@ -232,6 +450,69 @@ public class CloudWatchReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * <p>Sends at multiples of the period in wall-clock time, such as at the start of every minute, rather than
+         * a period after the reporter started. Values are stamped with the boundary their tick was due at, so each
+         * tick's values land in the same CloudWatch bucket. Disabled by default.</p>
+         *
+         * <p>Every reporter picks a random offset up to <code>maxJitter</code> and always sends that long after each
+         * boundary, so a fleet of instances started together doesn't call CloudWatch all at once. The jitter is
+         * capped at the period.</p>
+         *
+         * @param maxJitter the largest offset from the boundary, or 0 to send on the boundary
+         * @param unit the unit of the jitter
+         * @return this Enabler.
+         */
+        public Enabler withAlignedSchedule(long maxJitter, TimeUnit unit) {
+            this.alignSchedule = true;
+            this.maxJitterMillis = unit.toMillis(maxJitter);
+            return this;
+        }
+
+        /**
+         * <p>Sends the metrics matching the filter at the given interval rather than at the reporter's period. A
+         * metric takes the interval of the first matching rule, in the order they were added, and metrics matching
+         * no rule are sent at the period along with the JVM values. May be called multiple times.</p>
+         *
+         * <p>The reporter ticks often enough for every interval, and each tick sends everything due at that time in
+         * the same requests. Intervals that are multiples of each other, such as 10 seconds, 1 minute and 5 minutes,
+         * keep ticks to a minimum.</p>
+         *
+         * @param filter the metrics sent at the interval
+         * @param interval the time between sends of those metrics
+         * @param unit the unit of the interval
+         * @return this Enabler.
+         */
+        public Enabler withInterval(MetricFilter filter, long interval, TimeUnit unit) {
+            if (unit.toMillis(interval) <= 0) {
+                throw new IllegalArgumentException("Intervals must be at least a millisecond");
+            }
+            intervalFilters.add(filter);
+            intervalMillis.add(unit.toMillis(interval));
+            return this;
+        }
+
+        /**
+         * <p>Sends the metrics matching the filter as high resolution metrics, which CloudWatch stores at one second
+         * resolution rather than one minute, at the given interval. Intervals down to a second are supported; combine
+         * this with {@link #withAlignedSchedule} so each tick's values land in the same second. CloudWatch charges
+         * more for high resolution metrics and alarms, so keep the filter narrow. May be called multiple times.</p>
+         *
+         * <p>The storage resolution is added to requests by a handler the reporter adds to the client, as the SDK's
+         * <code>MetricDatum</code> doesn't have the field. A tick that takes longer than the
+         * period is logged, and on an aligned schedule the ticks it overran are skipped.</p>
+         *
+         * @param filter the metrics to send at high resolution
+         * @param interval the time between sends of those metrics
+         * @param unit the unit of the interval
+         * @return this Enabler.
+         */
+        public Enabler withHighResolution(MetricFilter filter, long interval, TimeUnit unit) {
+            withInterval(filter, interval, unit);
+            highResolutionFilters.add(filter);
+            return this;
+        }
+
         /**
          * <p>Adds an <code>InstanceId</code> dimension to all sent metrics with EC2 instance's id. The id isfetched
          * from the EC2 metadata server at <code>http://169.254.169.254/latest/meta-data/instance-id</code>.</p>
@@ -287,10 +568,25 @@ public class CloudWatchReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * <p>If the dimensions generated for each metric should be kept between ticks rather than regenerated for
+         * every value sent. Disabled by default.</p>
+         *
+         * <p>Cached dimensions are regenerated when their metric is added to or removed from the registry, or when
+         * a {@link VersionedDimensionAdder} changes its version. Only enable this if every other adder always returns
+         * the same dimensions for a given metric.</p>
+         *
+         * @return this Enabler.
+         */
+        public Enabler withDimensionCache(boolean enabled) {
+            cacheDimensions = enabled;
+            return this;
+        }
+
         /**
          * If metrics will be sent to CloudWatch. Enabled by default. If disabled, the metrics that would be sent are
-         * logged instead. It's useful to disable CloudWatch and see if the expected metrics are being sent before
-         * incurring the monthly charge.
+         * logged instead, unless they're sent to a sink added with {@link #withSink}. It's useful to disable
+         * CloudWatch and see if the expected metrics are being sent before incurring the monthly charge.
          *
          * @return this Enabler.
          */
@@ -299,6 +595,19 @@ public class CloudWatchReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * Sends the metrics to the sink as well as to CloudWatch, or instead of it if CloudWatch is disabled with
+         * {@link #withCloudWatchEnabled}. May be called multiple times. The reporter closes the sinks when it's
+         * stopped.
+         *
+         * @param sink receives every batch of datums the reporter sends
+         * @return this Enabler.
+         */
+        public Enabler withSink(MetricSink sink) {
+            sinks.add(sink);
+            return this;
+        }
+
         public Enabler withDurationUnit(StandardUnit unit) {
             durationUnit = unit;
             return this;
@@ -308,15 +617,235 @@ public class CloudWatchReporter extends ScheduledReporter {
             rateUnit = unit;
             return this;
         }
+
+        /**
+         * <p>The number of <code>PutMetricData</code> requests that may be sent to CloudWatch concurrently. Defaults
+         * to 1.</p>
+         *
+         * <p>Requests are sent on background threads while the reporter keeps collecting, so even the default overlaps
+         * collection with network I/O. Raising this helps large registries whose sends would otherwise overrun the
+         * reporting period. The reporter still waits for every request from a tick before the tick completes.</p>
+         *
+         * @param maxInFlight the maximum number of concurrent requests. Must be at least 1.
+         * @return this Enabler.
+         */
+        public Enabler withMaxRequestsInFlight(int maxInFlight) {
+            this.maxRequestsInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * The number of <code>PutMetricData</code> requests that may wait for a sender thread. When the queue is
+         * full, the reporting thread sends the next request itself, slowing collection down to the rate CloudWatch
+         * accepts. Defaults to 16.
+         *
+         * @param maxQueued the maximum number of queued requests
+         * @return this Enabler.
+         */
+        public Enabler withMaxRequestsQueued(int maxQueued) {
+            this.maxRequestsQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * <p>The limits each <code>PutMetricData</code> request is filled up to. Defaults to 20 datums and 40 KB,
+         * CloudWatch's original limits. CloudWatch now accepts up to 1000 datums and 1 MB per request, and raising
+         * the limits to match cuts the number of requests, and their cost, by up to fifty times.</p>
+         *
+         * <p>The size of each datum's encoded parameters is added up as it's added to a request, and the request is
+         * sent when the next datum wouldn't fit. 2 KB of the limit is left for the signing parameters.</p>
+         *
+         * @param maxDatums the most datums in a request. Must be at least 1.
+         * @param maxBytes the largest encoded request. Must be more than 2 KB.
+         * @return this Enabler.
+         */
+        public Enabler withRequestLimits(int maxDatums, int maxBytes) {
+            if (maxDatums < 1 || maxBytes <= PutMetricDataPacker.SIGNING_ALLOWANCE_BYTES) {
+                throw new IllegalArgumentException("Requests need room for at least one datum");
+            }
+            this.maxRequestDatums = maxDatums;
+            this.maxRequestBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * <p>Reads histograms, meters and timers on a pool of collection threads rather than only on the reporting
+         * thread, which helps when taking snapshots of large registries takes up much of the tick. By default
+         * everything is read on the reporting thread.</p>
+         *
+         * <p>The metrics are split into shards of consecutive names. Each shard's values are buffered by the thread
+         * that reads it, and the buffers are sent in name order, so the requests are the same as when reading
+         * serially. Gauges and counters are cheap to read and are still read on the reporting thread.</p>
+         *
+         * <p>The dimensions of histograms, meters and timers are generated on the collection threads, so
+         * {@link DimensionAdder#generate} is then called from several threads at once and must be thread-safe. With
+         * {@link #withDimensionCache} this only happens when a metric's dimensions aren't already cached.</p>
+         *
+         * @param threads the number of collection threads, or 0 to read on the reporting thread
+         * @return this Enabler.
+         */
+        public Enabler withParallelCollection(int threads) {
+            this.collectionThreads = threads;
+            return this;
+        }
         
+        /**
+         * <p>Retries <code>PutMetricData</code> requests that fail with throttling, server errors or connection
+         * problems. Other failures mean CloudWatch rejected the data, or the client couldn't build the request, for
+         * instance without valid credentials; they aren't retried or spooled. By default each request is only
+         * attempted once.</p>
+         *
+         * <p>The delay before each retry is between half and all of a backoff that starts at
+         * <code>initialBackoff</code> and doubles with each attempt until it reaches <code>maxBackoff</code>. A retry is only made if it's expected
+         * to finish before the next tick is due, so retries never make a tick overrun its period.</p>
+         *
+         * <p>Note that the AWS client also retries some failures itself, as configured by its
+         * <code>ClientConfiguration</code>.</p>
+         *
+         * @param maxAttempts the most times a request is sent, including the first. Must be at least 1.
+         * @param initialBackoff the backoff before the first retry
+         * @param maxBackoff the largest backoff before any retry
+         * @param unit the unit of the backoffs
+         * @return this Enabler.
+         */
+        public Enabler withRetries(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+            this.retryPolicy = new RetryPolicy(maxAttempts, unit.toMillis(initialBackoff), unit.toMillis(maxBackoff));
+            return this;
+        }
+
+        /**
+         * <p>Spools requests that fail with throttling, server errors or connection problems to local files, and
+         * replays them once sends succeed again. Without a spool, such requests are lost. Disabled by default.</p>
+         *
+         * <p>Requests are only spooled once any retries configured by {@link #withRetries} have been exhausted. The
+         * spool survives restarts; requests left by a previous process are replayed too. When it grows beyond
+         * <code>maxBytes</code>, the oldest requests are dropped.</p>
+         *
+         * @param directory the directory to keep the spool in. It's created if it doesn't exist, and must only be
+         * used by one reporter at a time.
+         * @param maxBytes the most disk space the spool may use
+         * @param replayRequestsPerSecond the most spooled requests replayed each second
+         * @return this Enabler.
+         */
+        public Enabler withSpool(File directory, long maxBytes, int replayRequestsPerSecond) {
+            this.spoolDirectory = directory;
+            this.spoolMaxBytes = maxBytes;
+            this.spoolReplayRequestsPerSecond = replayRequestsPerSecond;
+            return this;
+        }
+
+        /**
+         * <p>Writes the values as <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format.html">
+         * Embedded Metric Format</a> JSON lines rather than calling <code>PutMetricData</code>. The CloudWatch agent,
+         * or the log driver of a container or Lambda function, turns the lines into metrics asynchronously, which
+         * avoids the API's request charges and throttling. The client isn't called.</p>
+         *
+         * <p>Values with the same dimensions share a line, up to 100 of them. EMF only has single values, so
+         * statistic sets and distributions can't be written, and are skipped. Each tick's lines are written
+         * and flushed together.</p>
+         *
+         * @param out the stream to write to, such as <code>System.out</code>. It isn't closed by the reporter.
+         * @return this Enabler.
+         */
+        public Enabler withEmbeddedMetricFormat(OutputStream out) {
+            this.embeddedMetricStream = out;
+            this.embeddedMetricFile = null;
+            return this;
+        }
+
+        /**
+         * Writes the values as Embedded Metric Format JSON lines to a file, for the CloudWatch agent to tail. The file
+         * is renamed to <code>file.1</code> once it reaches <code>maxBytes</code>, with older files moving up to
+         * <code>file.2</code> and so on. See {@link #withEmbeddedMetricFormat(OutputStream)}.
+         *
+         * @param file the file to append to
+         * @param maxBytes the size at which the file is rotated
+         * @param maxBackups the number of rotated files to keep
+         * @return this Enabler.
+         */
+        public Enabler withEmbeddedMetricFormat(File file, long maxBytes, int maxBackups) {
+            this.embeddedMetricFile = file;
+            this.embeddedMetricMaxBytes = maxBytes;
+            this.embeddedMetricBackups = maxBackups;
+            this.embeddedMetricStream = null;
+            return this;
+        }
+
+        /**
+         * <p>Records the reporter's own metrics, to tell when it's falling behind or failing to send. Disabled by
+         * default. The metrics are kept in a registry of their own, available from
+         * {@link CloudWatchReporter#getReporterMetrics()}, with names starting <code>cloudwatch_reporter.</code>:</p>
+         * <ul>
+         * <li><code>tick</code>, <code>collection</code> and <code>send_wait</code>: timers of each tick's wall time,
+         * split into the time spent reading metrics and the time spent waiting for their requests afterwards.</li>
+         * <li><code>put_metric_data</code>: a timer of every <code>PutMetricData</code> attempt, including retries.</li>
+         * <li><code>batch_datums</code> and <code>batch_bytes</code>: histograms of the size of each request.</li>
+         * <li><code>datums.gauges</code>, <code>.counters</code>, <code>.histograms</code>, <code>.meters</code>,
+         * <code>.timers</code> and <code>.jvm</code>: the datums produced for each type of metric.</li>
+         * <li><code>failures.&lt;error&gt;</code>: failed attempts by CloudWatch error code, or exception class.</li>
+         * <li><code>dropped_datums</code> and <code>spooled_datums</code>: datums whose requests failed for good, and
+         * those spooled for replay.</li>
+         * <li><code>clamped.too_small</code> and <code>clamped.too_large</code>: values trimmed to the range
+         * CloudWatch accepts.</li>
+         * <li><code>unsendable_gauges</code>: gauge reads skipped because their value wasn't a number.</li>
+         * <li><code>dimensions_truncated</code>: datums sent with only the first 10 of their dimensions.</li>
+         * <li><code>series.dropped</code> and <code>series.collapsed</code>: datums of series over the budgets set with
+         * {@link #withSeriesBudgets}, dropped or sent as their metric's <code>other</code> series.</li>
+         * <li><code>series.admitted</code> and <code>series.estimated</code>: gauges of the series within the budgets,
+         * and an estimate of the distinct series seen in all, including those over budget. Neither includes the JVM's
+         * or the reporter's own series, which aren't budgeted.</li>
+         * </ul>
+         *
+         * <p>When sent to CloudWatch, they're sent like the registry's metrics at the reporter's period, and each
+         * tick's timings are sent with the following tick.</p>
+         *
+         * @param exposeInJMX registers the metrics as MBeans in the <code>cloudwatch-reporter.&lt;namespace&gt;</code>
+         * domain
+         * @param sendToCloudWatch sends the metrics to CloudWatch along with the registry's
+         * @return this Enabler.
+         */
+        public Enabler withReporterMetrics(boolean exposeInJMX, boolean sendToCloudWatch) {
+            this.reporterMetricsInJMX = exposeInJMX;
+            this.sendReporterMetrics = sendToCloudWatch;
+            return this;
+        }
+
+        /**
+         * <p>Caps the number of series sent, each a metric name with a combination of dimension values, so a
+         * dimension adder that puts something unbounded like request ids in its values can't create a custom metric
+         * for each. By default any number are sent. Datums with more than CloudWatch's limit of 10 dimensions are
+         * always sent with only the first 10.</p>
+         *
+         * <p>Series are admitted as they're first seen, while their metric name and the reporter are within budget,
+         * and stay admitted until the reporter is stopped. Datums of later series are either dropped or collapsed into
+         * their metric's <code>other</code> series, which has the same dimension names with every value
+         * <code>other</code>. Either way they're counted in the reporter's metrics, along with an estimate of how
+         * many series there were in all; see {@link #withReporterMetrics}.</p>
+         *
+         * <p>Only the registry's metrics count against the budgets. The JVM's and the reporter's own are always sent,
+         * so enabling them can't crowd out the application's series.</p>
+         *
+         * @param maxSeriesPerMetric the most series of each metric name. Must be at least 1.
+         * @param maxSeries the most series in all. Must be at least 1.
+         * @param collapseToOther if series over budget are sent as their metric's <code>other</code> series rather
+         * than dropped
+         * @return this Enabler.
+         */
+        public Enabler withSeriesBudgets(int maxSeriesPerMetric, int maxSeries, boolean collapseToOther) {
+            if (maxSeriesPerMetric < 1 || maxSeries < 1) {
+                throw new IllegalArgumentException("Series budgets must be at least 1");
+            }
+            this.maxSeriesPerMetric = maxSeriesPerMetric;
+            this.maxSeries = maxSeries;
+            this.collapseSeriesOverBudget = collapseToOther;
+            return this;
+        }
+
         /**
          * Creates a reporter with the settings currently configured on this enabler.
          */
         public CloudWatchReporter build() {
-            return new CloudWatchReporter(registry, namespace, client, filter, dimensionAdders,
-                                          sendToCloudWatch, percentilesToSend, sendOneMinute, sendFiveMinute,
-                                          sendFifteenMinute, sendMeterSummary, sendTimerLifetime, sendHistoLifetime,
-                                          sendJVMMemory, sendJVMThreadState, sendGC, durationUnit, rateUnit);
+            return new CloudWatchReporter(this);
         }
         
         /**
@@ -331,62 +860,272 @@ public class CloudWatchReporter extends ScheduledReporter {
         }
     }
 
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+    private static final String[] THREAD_STATE_NAMES = new String[THREAD_STATES.length];
+    static {
+        for (Thread.State state : THREAD_STATES) {
+            THREAD_STATE_NAMES[state.ordinal()] = "jvm.thread-states." + state.toString().toLowerCase(Locale.US);
+        }
+    }
+
     private final VirtualMachineMetrics vm = VirtualMachineMetrics.getInstance();
+    // Only used on the reporting thread, and refilled each tick
+    private final VirtualMachineMetrics.Sample vmSample = vm.newSample();
+    private final String[] gcTimeNames = new String[vmSample.getGarbageCollectorCount()];
+    private final String[] gcRunNames = new String[vmSample.getGarbageCollectorCount()];
+    private final String[] poolUsedNames = new String[vmSample.getMemoryPoolCount()];
+    private final String[] poolUsageNames = new String[vmSample.getMemoryPoolCount()];
+    private final String[] bufferCountNames = new String[vmSample.getBufferPoolCount()];
+    private final String[] bufferUsedNames = new String[vmSample.getBufferPoolCount()];
+    private final String[] bufferCapacityNames = new String[vmSample.getBufferPoolCount()];
     private final List<DimensionAdder> dimensionAdders;
     private final Set<String> unsendable = new HashSet<String>();
     private final Set<String> nonCloudWatchUnit = new HashSet<String>();
+    // At least this many metrics go in each shard, so the per-shard overhead stays small
+    private static final int MIN_SHARD_SIZE = 64;
     private final MetricRegistry registry;
     private final MetricFilter filter;
     private final String namespace;
     private final AmazonCloudWatchClient client;
-    private final boolean sendToCloudWatch;
 
     private final double[] percentilesToSend;
     private final boolean sendOneMinute, sendFiveMinute, sendFifteenMinute;
     private final boolean sendMeterSummary;
     private final boolean sendTimerLifetime;
     private final boolean sendHistoLifetime;
+    private final boolean sendStatisticSets;
+    private final boolean sendDistributions;
+    private final boolean skipZeroDeltas;
     private final boolean sendJVMMemory;
     private final boolean sendJVMThreads;
     private final boolean sendJVMGC;
+    private final boolean sendJVMMemoryPools;
+    private final boolean sendJVMBufferPools;
+    private final boolean sendJVMAllocationRate;
 
     private final StandardUnit durationUnit;
+    private final TimeUnit durationTimeUnit;
     private final StandardUnit rateUnit;
+
+    private final DatumNameTable datumNames;
+    private final MetricSink sink;
+    // The sink sending to CloudWatch, if there is one
+    private final PutMetricDataSender sender;
+    private final ReporterMetrics stats;
+    private final JmxReporter statsJMX;
+    private final boolean sendStats;
+    // Datums produced on the reporting thread, to count those produced for each metric
+    private long datumsProduced;
+    private final CountDeltas countDeltas;
+    private final UnchangedValueFilter gaugeFilter;
+    private final DimensionCache dimensionCache;
+    private final DimensionGuard dimensionGuard;
+    private final GcNotificationCollector gcNotifications;
+    private final ForkJoinPool collectionPool;
+    private final int collectionThreads;
+    // Set on collection threads while they read a shard, so the values go to its buffer rather than the request
+    private final ThreadLocal<ShardBuffer> shardBuffer = new ThreadLocal<ShardBuffer>();
     
-    private PutMetricDataRequest putReq;
-
-    private CloudWatchReporter(MetricRegistry registry, String namespace, AmazonCloudWatchClient client,
-                               MetricFilter filter, List<DimensionAdder> dimensionAdders,
-                               boolean sendToCloudWatch, double[] percentilesToSend, boolean sendOneMinute,
-                               boolean sendFiveMinute, boolean sendFifteenMinute, boolean sendMeterSummary,
-                               boolean sendTimerLifetime, boolean sendHistoLifetime, boolean sendJVMMemory,
-                               boolean sendJVMThreads, boolean sendJVMGC,
-                               StandardUnit durationUnit, StandardUnit rateUnit) {
-
-        super(registry, "cloudwatch-reporter", 
-                        filter, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+    // The batch being filled on the reporting thread, reused from one batch to the next
+    private final DatumStore batch = new DatumStore(64);
+    private final PutMetricDataPacker packer;
+    private final LogLinearBuckets buckets = new LogLinearBuckets(ExtendedDatum.MAX_VALUES);
+    // Kept between ticks for the collection threads to reuse
+    private final List<ShardBuffer> shardBuffers = new ArrayList<ShardBuffer>();
+    // The count carried by the next datum sent on the reporting thread, when delta counts are enabled
+    private String pendingCountName;
+    private long pendingCount;
+    // The gauge value carried by the next datum, when unchanged gauges are skipped
+    private String pendingGaugeName;
+    private double pendingGaugeValue;
+    private long pendingGaugeMillis;
+    // The time between ticks, and between sends of the metrics without an interval rule
+    private volatile long periodMillis;
+    private volatile long defaultIntervalMillis;
+    private final IntervalTiers intervalTiers;
+    private final MetricFilter[] highResolutionFilters;
+    private final ExtendedDatum.ParameterHandler datumParameterHandler;
+    // If the metric being read on the reporting thread is sent at high resolution
+    private boolean highResolutionMetric;
+    // If the reporter's own metrics or the JVM's are being read, which don't count against the series budgets
+    private boolean internalMetrics;
+    private boolean overrunLogged;
+    // When the reporter started on an unaligned schedule, to tell which tiers each tick is for; -1 if not started
+    private volatile long startMillis = -1;
+    private final boolean alignSchedule;
+    private final long maxJitterMillis;
+    private volatile long jitterMillis;
+    private AlignedScheduler alignedScheduler;
+    // The boundary the running aligned tick was due at, or -1 outside one
+    private long tickBoundaryMillis = -1;
+    // The allocated bytes at the previous tick, to send the rate since then; -1 before the first
+    private long lastAllocatedBytes = -1;
+    private long lastAllocatedNanos;
+
+    private CloudWatchReporter(Enabler enabler) {
+
+        super(enabler.registry, "cloudwatch-reporter", 
+                        enabler.filter, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
         
-        this.registry = registry;
-        this.filter = filter;
-
-        this.namespace = namespace;
-        this.client = client;
-        this.dimensionAdders = dimensionAdders;
-        this.sendToCloudWatch = sendToCloudWatch;
-
-        this.percentilesToSend = percentilesToSend;
-        this.sendOneMinute = sendOneMinute;
-        this.sendFiveMinute = sendFiveMinute;
-        this.sendFifteenMinute = sendFifteenMinute;
-        this.sendMeterSummary = sendMeterSummary;
-        this.sendTimerLifetime = sendTimerLifetime;
-        this.sendHistoLifetime = sendHistoLifetime;
-        this.sendJVMMemory = sendJVMMemory;
-        this.sendJVMThreads = sendJVMThreads;
-        this.sendJVMGC = sendJVMGC;
+        this.registry = enabler.registry;
+        this.filter = enabler.filter;
+
+        this.namespace = enabler.namespace;
+        this.client = enabler.client;
+        this.dimensionAdders = new ArrayList<DimensionAdder>(enabler.dimensionAdders);
+
+        this.percentilesToSend = enabler.percentilesToSend.clone();
+        this.sendOneMinute = enabler.sendOneMinute;
+        this.sendFiveMinute = enabler.sendFiveMinute;
+        this.sendFifteenMinute = enabler.sendFifteenMinute;
+        this.sendMeterSummary = enabler.sendMeterSummary;
+        this.sendTimerLifetime = enabler.sendTimerLifetime;
+        this.sendHistoLifetime = enabler.sendHistoLifetime;
+        this.sendStatisticSets = enabler.sendStatisticSets;
+        this.sendDistributions = enabler.sendDistributions;
+        this.skipZeroDeltas = enabler.skipZeroDeltas;
+        this.sendJVMMemory = enabler.sendJVMMemory;
+        this.sendJVMThreads = enabler.sendJVMThreadState;
+        this.sendJVMGC = enabler.sendGC;
+        this.sendJVMMemoryPools = enabler.sendJVMMemoryPools;
+        this.sendJVMBufferPools = enabler.sendJVMBufferPools;
+        this.sendJVMAllocationRate = enabler.sendJVMAllocationRate;
         
-        this.durationUnit = durationUnit;
-        this.rateUnit = rateUnit;
+        this.durationUnit = enabler.durationUnit;
+        this.durationTimeUnit = toTimeUnit(durationUnit);
+        for (int i = 0; i < gcTimeNames.length; i++) {
+            gcTimeNames[i] = "jvm.gc." + vmSample.getGarbageCollectorName(i) + ".time";
+            gcRunNames[i] = "jvm.gc." + vmSample.getGarbageCollectorName(i) + ".runs";
+        }
+        for (int i = 0; i < poolUsedNames.length; i++) {
+            poolUsedNames[i] = "jvm.memory.pool." + vmSample.getMemoryPoolName(i) + ".used";
+            poolUsageNames[i] = "jvm.memory.pool." + vmSample.getMemoryPoolName(i) + ".usage";
+        }
+        for (int i = 0; i < bufferCountNames.length; i++) {
+            bufferCountNames[i] = "jvm.buffers." + vmSample.getBufferPoolName(i) + ".count";
+            bufferUsedNames[i] = "jvm.buffers." + vmSample.getBufferPoolName(i) + ".used";
+            bufferCapacityNames[i] = "jvm.buffers." + vmSample.getBufferPoolName(i) + ".capacity";
+        }
+        this.rateUnit = enabler.rateUnit;
+
+        this.datumNames = new DatumNameTable(percentilesToSend);
+        if (registry != null) {
+            registry.addListener(datumNames);
+        }
+        this.stats = enabler.reporterMetricsInJMX || enabler.sendReporterMetrics ? new ReporterMetrics() : null;
+        this.sendStats = enabler.sendReporterMetrics;
+        if (enabler.reporterMetricsInJMX) {
+            this.statsJMX = JmxReporter.forRegistry(stats.getRegistry())
+                .inDomain("cloudwatch-reporter." + namespace.replace(':', '_'))
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+            statsJMX.start();
+        } else {
+            this.statsJMX = null;
+        }
+        List<MetricSink> sinks = new ArrayList<MetricSink>();
+        boolean embeddedMetrics = enabler.embeddedMetricFile != null || enabler.embeddedMetricStream != null;
+        if (embeddedMetrics) {
+            sinks.add(createEmbeddedMetricSink(enabler));
+            this.sender = null;
+        } else if (enabler.sendToCloudWatch) {
+            this.sender = new PutMetricDataSender(namespace, client, enabler.retryPolicy, createSpoolReplayer(enabler),
+                                                  stats, enabler.maxRequestsInFlight, enabler.maxRequestsQueued);
+            sinks.add(sender);
+        } else {
+            if (enabler.sinks.isEmpty()) {
+                sinks.add(new LoggingMetricSink());
+            }
+            this.sender = null;
+        }
+        sinks.addAll(enabler.sinks);
+        this.sink = sinks.size() == 1 ? sinks.get(0) : new FanOutMetricSink(sinks);
+        // Embedded metrics aren't limited by the API, so they're batched by timestamp alone
+        this.packer = embeddedMetrics
+            ? new PutMetricDataPacker(namespace, EMBEDDED_METRIC_BATCH_DATUMS, Integer.MAX_VALUE)
+            : new PutMetricDataPacker(namespace, enabler.maxRequestDatums, enabler.maxRequestBytes);
+        this.intervalTiers = new IntervalTiers(enabler.intervalFilters, enabler.intervalMillis);
+        if (registry != null && !intervalTiers.isEmpty()) {
+            intervalTiers.listenTo(registry);
+        }
+        this.defaultIntervalMillis = enabler.unit.toMillis(enabler.period);
+        this.highResolutionFilters =
+            enabler.highResolutionFilters.toArray(new MetricFilter[enabler.highResolutionFilters.size()]);
+        if (client != null && (highResolutionFilters.length > 0 || sendDistributions)) {
+            this.datumParameterHandler = new ExtendedDatum.ParameterHandler();
+            client.addRequestHandler(datumParameterHandler);
+        } else {
+            this.datumParameterHandler = null;
+        }
+        this.periodMillis = intervalTiers.tickMillis(defaultIntervalMillis);
+        this.alignSchedule = enabler.alignSchedule;
+        this.maxJitterMillis = enabler.maxJitterMillis;
+        this.jitterMillis = pickJitter(maxJitterMillis, periodMillis);
+        this.countDeltas = enabler.sendDeltaCounts ? new CountDeltas() : null;
+        this.gaugeFilter = enabler.skipUnchangedGauges
+                ? new UnchangedValueFilter(enabler.gaugeEpsilon, enabler.gaugeHeartbeatMillis) : null;
+        if (enabler.cacheDimensions) {
+            this.dimensionCache = new DimensionCache(dimensionAdders);
+            if (registry != null) {
+                registry.addListener(dimensionCache);
+            }
+        } else {
+            this.dimensionCache = null;
+        }
+        this.dimensionGuard = new DimensionGuard(enabler.maxSeriesPerMetric, enabler.maxSeries,
+                                                 enabler.collapseSeriesOverBudget, stats);
+        this.gcNotifications = sendJVMGC && enabler.gcNotifications ? GcNotificationCollector.install() : null;
+        this.collectionThreads = enabler.collectionThreads;
+        this.collectionPool = collectionThreads > 0 ? createCollectionPool(collectionThreads) : null;
+    }
+
+    private SpoolReplayer createSpoolReplayer(Enabler enabler) {
+        if (enabler.spoolDirectory == null) {
+            return null;
+        }
+        try {
+            MetricSpool spool = new MetricSpool(enabler.spoolDirectory, spoolSegmentBytes(enabler.spoolMaxBytes),
+                                                enabler.spoolMaxBytes);
+            return new SpoolReplayer(spool, client, enabler.spoolReplayRequestsPerSecond);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to open CloudWatch spool in " + enabler.spoolDirectory, e);
+        }
+    }
+
+    private EmbeddedMetricSink createEmbeddedMetricSink(Enabler enabler) {
+        if (enabler.embeddedMetricStream != null) {
+            return new EmbeddedMetricSink(namespace, enabler.embeddedMetricStream, false, stats);
+        }
+        try {
+            return new EmbeddedMetricSink(namespace, new RotatingFileOutputStream(
+                enabler.embeddedMetricFile, enabler.embeddedMetricMaxBytes, enabler.embeddedMetricBackups), true, stats);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to open " + enabler.embeddedMetricFile, e);
+        }
+    }
+
+    private static ForkJoinPool createCollectionPool(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("cloudwatch-collector-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+    }
+
+    private static long pickJitter(long maxJitterMillis, long periodMillis) {
+        return (long) (Math.random() * Math.min(maxJitterMillis, periodMillis));
+    }
+
+    /**
+     * Sizes spool segments so a full spool is spread over several of them, letting eviction drop a fraction at a time.
+     */
+    private static int spoolSegmentBytes(long maxBytes) {
+        return (int) Math.max(64 * 1024, Math.min(1024 * 1024, maxBytes / 8));
     }
 
     @Override
@@ -396,18 +1135,54 @@ public class CloudWatchReporter extends ScheduledReporter {
                         SortedMap<String, Meter> meters, 
                         SortedMap<String, Timer> timers) {
 
-        putReq = new PutMetricDataRequest().withNamespace(namespace);
+        batch.clear();
+        packer.reset();
+        long started = System.currentTimeMillis();
+        long startedNanos = System.nanoTime();
+        if (sender != null) {
+            sender.setDeadline(started + periodMillis);
+        }
         try {
-            Date timestamp = new Date();
-            sendVMMetrics(timestamp);
-            
+            if (dimensionCache != null) {
+                dimensionCache.checkAdderVersions();
+            }
+            Date timestamp = new Date(timestampMillis());
+            long tickTime = tickTime();
+            boolean defaultDue = IntervalTiers.isDue(defaultIntervalMillis, tickTime);
+            if (!intervalTiers.isEmpty()) {
+                gauges = intervalTiers.dueGauges(gauges, tickTime, defaultIntervalMillis);
+                counters = intervalTiers.dueCounters(counters, tickTime, defaultIntervalMillis);
+                histograms = intervalTiers.dueHistograms(histograms, tickTime, defaultIntervalMillis);
+                meters = intervalTiers.dueMeters(meters, tickTime, defaultIntervalMillis);
+                timers = intervalTiers.dueTimers(timers, tickTime, defaultIntervalMillis);
+            }
+            if (defaultDue) {
+                long before = datumsProduced;
+                internalMetrics = true;
+                sendVMMetrics(timestamp);
+                internalMetrics = false;
+                if (stats != null) {
+                    stats.jvmDatumsProduced(datumsProduced - before);
+                }
+            }
+
             sendRegularMetrics(timestamp, gauges);
             sendRegularMetrics(timestamp, counters);
-            sendRegularMetrics(timestamp, histograms);
-            sendRegularMetrics(timestamp, meters);
-            sendRegularMetrics(timestamp, timers);
+            if (collectionPool != null) {
+                sendShardedMetrics(timestamp, histograms, meters, timers);
+            } else {
+                sendRegularMetrics(timestamp, histograms);
+                sendRegularMetrics(timestamp, meters);
+                sendRegularMetrics(timestamp, timers);
+            }
+
+            if (defaultDue) {
+                internalMetrics = true;
+                sendReporterMetrics(timestamp);
+                internalMetrics = false;
+            }
             
-            sendToCloudWatch();
+            sendBatch(batch.size());
         } catch (Exception e) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Error writing to CloudWatch", e);
@@ -415,27 +1190,321 @@ public class CloudWatchReporter extends ScheduledReporter {
                 LOG.warn("Error writing to CloudWatch: {}", e.getMessage());
             }
         } finally {
-            putReq = null;
+            long collectedNanos = System.nanoTime();
+            sink.flush();
+            if (stats != null) {
+                stats.tickCompleted(collectedNanos - startedNanos, System.nanoTime() - collectedNanos);
+                stats.seriesCounted(dimensionGuard.admittedSeries(), dimensionGuard.estimatedSeries());
+            }
+            if (countDeltas != null) {
+                countDeltas.commit(ticksToKeep());
+            }
+            if (gaugeFilter != null) {
+                gaugeFilter.commit(ticksToKeep());
+            }
+            batch.clear();
+            pendingCountName = null;
+            pendingGaugeName = null;
+            internalMetrics = false;
+            logOverrun(System.currentTimeMillis() - started);
+        }
+    }
+
+    /**
+     * @return how many ticks per-metric state is kept for without the metric being read: those in the longest
+     * interval, as a metric is only read on the ticks it's due
+     */
+    private int ticksToKeep() {
+        long period = periodMillis;
+        return (int) Math.max(1, (intervalTiers.longestMillis(defaultIntervalMillis) + period - 1) / period);
+    }
+
+    private void logOverrun(long tookMillis) {
+        if (tookMillis <= periodMillis) {
+            return;
+        }
+        if (!overrunLogged) {
+            LOG.warn("Reporting to CloudWatch took {}ms, longer than the {}ms period. Further overruns will be logged at debug.",
+                     tookMillis, periodMillis);
+            overrunLogged = true;
+        } else {
+            LOG.debug("Reporting to CloudWatch took {}ms, longer than the {}ms period", tookMillis, periodMillis);
         }
     }
     
-    private void sendToCloudWatch() {
+    /**
+     * @return when values sent now should be stamped; the boundary of the tick when sending on an aligned schedule
+     */
+    private long timestampMillis() {
+        long now = System.currentTimeMillis();
+        if (!alignSchedule) {
+            return now;
+        }
+        return tickBoundaryMillis >= 0 ? tickBoundaryMillis : AlignedScheduler.boundary(now, periodMillis, jitterMillis);
+    }
+
+    /**
+     * @return the time of the running tick for picking the interval tiers that are due, or -1 if all of them are
+     */
+    private long tickTime() {
+        if (intervalTiers.isEmpty()) {
+            return -1;
+        }
+        if (alignSchedule) {
+            return tickBoundaryMillis;
+        }
+        if (startMillis < 0) {
+            return -1;
+        }
+        // Ticks on a fixed-rate schedule run at about a multiple of the period after the start
+        long period = periodMillis;
+        return (System.currentTimeMillis() - startMillis + period / 2) / period * period;
+    }
+
+    /**
+     * @return the reporter's own metrics, or null unless enabled with {@link Enabler#withReporterMetrics}
+     */
+    public MetricRegistry getReporterMetrics() {
+        return stats == null ? null : stats.getRegistry();
+    }
+
+    @Override
+    public void start(long period, TimeUnit unit) {
+        defaultIntervalMillis = unit.toMillis(period);
+        // Retries are budgeted so they finish within the period
+        periodMillis = intervalTiers.tickMillis(defaultIntervalMillis);
+        if (!alignSchedule) {
+            startMillis = System.currentTimeMillis();
+            super.start(periodMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        jitterMillis = pickJitter(maxJitterMillis, periodMillis);
+        LOG.debug("Sending to CloudWatch {}ms after every {}ms boundary", jitterMillis, periodMillis);
+        alignedScheduler = new AlignedScheduler("cloudwatch-reporter", periodMillis, jitterMillis,
+                new AlignedScheduler.Tick() {
+                    @Override
+                    public void run(long boundaryMillis) {
+                        reportAt(boundaryMillis);
+                    }
+                });
+        alignedScheduler.start();
+    }
+
+    private synchronized void reportAt(long boundaryMillis) {
+        tickBoundaryMillis = boundaryMillis;
         try {
-            if (sendToCloudWatch && !putReq.getMetricData().isEmpty()) {
-                client.putMetricData(putReq);
+            report();
+        } finally {
+            tickBoundaryMillis = -1;
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (alignedScheduler != null) {
+                alignedScheduler.stop();
             }
-        } catch (RuntimeException re) {
-            LOG.warn("Failed writing to CloudWatch: {}", putReq);
-            throw re;
+            super.stop();
         } finally {
-            // Be sure the putReq cleared; a failure indicates bad data, so we don't want to try again
-            putReq = new PutMetricDataRequest().withNamespace(namespace);
+            sink.close();
+            if (collectionPool != null) {
+                collectionPool.shutdown();
+            }
+            if (gcNotifications != null) {
+                gcNotifications.uninstall();
+            }
+            if (datumParameterHandler != null) {
+                client.removeRequestHandler(datumParameterHandler);
+            }
+            if (statsJMX != null) {
+                statsJMX.stop();
+            }
+            if (registry != null) {
+                registry.removeListener(datumNames);
+                if (!intervalTiers.isEmpty()) {
+                    intervalTiers.stopListening(registry);
+                }
+                if (dimensionCache != null) {
+                    registry.removeListener(dimensionCache);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the first datums of the batch to the sink, leaving the caller to drop them from the batch.
+     */
+    private void sendBatch(int datums) {
+        Future<?> sent = null;
+        if (datums > 0) {
+            if (stats != null) {
+                stats.batchSent(datums, packer.encodedBytes());
+            }
+            sent = sink.write(batch.subList(0, datums));
+        }
+        if (countDeltas != null) {
+            countDeltas.batchSent(sent);
+        }
+        if (gaugeFilter != null) {
+            gaugeFilter.batchSent(sent);
+        }
+        packer.reset();
+    }
+
+    /**
+     * Sends a count, or its change since the last successful send when delta counts are enabled.
+     */
+    private void sendCount(Date timestamp, String name, long count, List<Dimension> dimensions) {
+        if (countDeltas == null) {
+            sendValue(timestamp, name, count, StandardUnit.Count, dimensions);
+            return;
+        }
+        long delta = countDeltas.delta(name, count);
+        ShardBuffer shard = shardBuffer.get();
+        if (delta == 0 && skipZeroDeltas) {
+            // Keeps the count's baseline, which is otherwise forgotten when not sent for a while
+            if (shard != null) {
+                shard.countSeen(name);
+            } else {
+                countDeltas.seen(name);
+            }
+            return;
         }
+        // Which batch the count goes in isn't known until its datum is added to a request
+        if (shard != null) {
+            shard.pendingCount(name, count);
+        } else {
+            pendingCountName = name;
+            pendingCount = count;
+        }
+        sendValue(timestamp, name, delta, StandardUnit.Count, dimensions);
     }
 
     private boolean sentTooSmall, sentTooLarge;
 
     private void sendValue(Date timestamp, String name, double value, StandardUnit unit, List<Dimension> dimensions) {
+        ShardBuffer shard = shardBuffer.get();
+        DatumStore datums = shard != null ? shard.datums : batch;
+        datums.addValue(timestamp.getTime(), name, trimToSendable(name, value), unit, dimensions,
+                        isHighResolutionMetric());
+        datumAdded(shard);
+    }
+
+    /**
+     * Sends a statistic set summarising the given snapshot, which must cover a single interval. If
+     * <code>recordedUnit</code> is given, the values are durations converted from it into the duration unit;
+     * otherwise they're sent without a unit. Empty snapshots are skipped as CloudWatch requires a positive sample
+     * count.
+     */
+    private void sendStatistics(Date timestamp, String name, Snapshot snapshot, TimeUnit recordedUnit,
+                                List<Dimension> dimensions) {
+        if (snapshot.size() == 0) {
+            return;
+        }
+        double sum = ((CompactSnapshot) snapshot).getSum();
+        double min = snapshot.getMin();
+        double max = snapshot.getMax();
+        StandardUnit unit = StandardUnit.None;
+        if (recordedUnit != null) {
+            sum = convertDurationExactly(sum, recordedUnit);
+            min = convertDurationExactly(min, recordedUnit);
+            max = convertDurationExactly(max, recordedUnit);
+            unit = durationUnit;
+        }
+        ShardBuffer shard = shardBuffer.get();
+        DatumStore datums = shard != null ? shard.datums : batch;
+        datums.addStatistics(timestamp.getTime(), name, snapshot.size(), trimToSendable(name, sum),
+                             trimToSendable(name, min), trimToSendable(name, max), unit, dimensions,
+                             isHighResolutionMetric());
+        datumAdded(shard);
+    }
+
+    /**
+     * Sends the snapshot's values, compressed into at most {@link ExtendedDatum#MAX_VALUES} distinct values. As with
+     * {@link #sendStatistics}, a <code>recordedUnit</code> means the values are durations, and empty snapshots are
+     * skipped.
+     */
+    private void sendDistribution(Date timestamp, String name, Snapshot snapshot, TimeUnit recordedUnit,
+                                  List<Dimension> dimensions) {
+        ShardBuffer shard = shardBuffer.get();
+        LogLinearBuckets buckets = shard != null ? shard.buckets : this.buckets;
+        int size = snapshot instanceof CompactSnapshot
+            ? buckets.compress((CompactSnapshot) snapshot) : buckets.compress(snapshot.getValues());
+        if (size == 0) {
+            return;
+        }
+        DatumStore datums = shard != null ? shard.datums : batch;
+        int datum = datums.addDistribution(timestamp.getTime(), name, size,
+                                           recordedUnit == null ? StandardUnit.None : durationUnit, dimensions,
+                                           isHighResolutionMetric());
+        // Each value may only appear once, so buckets that convert to the same value are merged
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            double value = recordedUnit == null
+                ? buckets.value(i) : convertDurationExactly(buckets.value(i), recordedUnit);
+            value = trimToSendable(name, value);
+            if (distinct > 0 && value == datums.distributionValue(datum, distinct - 1)) {
+                datums.setDistributionValue(datum, distinct - 1, value,
+                                            datums.distributionCount(datum, distinct - 1) + buckets.count(i));
+            } else {
+                datums.setDistributionValue(datum, distinct++, value, buckets.count(i));
+            }
+        }
+        datums.setDistributionSize(datum, distinct);
+        datumAdded(shard);
+    }
+
+    private boolean isHighResolutionMetric() {
+        ShardBuffer shard = shardBuffer.get();
+        return shard != null ? shard.highResolution : highResolutionMetric;
+    }
+
+    /**
+     * Takes the datum just added to the shard's store, or to the batch on the reporting thread. The datum's dimensions
+     * are checked against the limits and budgets, which may drop it. If it doesn't fit in the batch, the datums before
+     * it are sent first.
+     */
+    private void datumAdded(ShardBuffer shard) {
+        if (shard != null) {
+            shard.added();
+            return;
+        }
+        int datum = batch.size() - 1;
+        datumsProduced++;
+        List<Dimension> dimensions = batch.dimensions(datum);
+        List<Dimension> checked = dimensionGuard.check(batch.name(datum), dimensions, !internalMetrics);
+        if (checked == null) {
+            batch.removeLast();
+            if (pendingCountName != null) {
+                countDeltas.seen(pendingCountName);
+                pendingCountName = null;
+            }
+            pendingGaugeName = null;
+            return;
+        }
+        if (checked != dimensions) {
+            batch.setDimensions(datum, checked);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Sending {}", batch.datum(datum));
+        }
+        if (!packer.add(batch, datum)) {
+            sendBatch(datum);
+            batch.keepLast();
+            packer.add(batch, 0);
+        }
+        if (pendingCountName != null) {
+            countDeltas.pending(pendingCountName, pendingCount);
+            pendingCountName = null;
+        }
+        if (pendingGaugeName != null) {
+            gaugeFilter.pending(pendingGaugeName, pendingGaugeValue, pendingGaugeMillis);
+            pendingGaugeName = null;
+        }
+    }
+
+    private double trimToSendable(String name, double value) {
         double absValue = Math.abs(value);
         if (absValue < SMALLEST_SENDABLE) {
             if (absValue > 0) {// Allow 0 through untouched, everything else gets rounded to SMALLEST_SENDABLE
@@ -444,6 +1513,9 @@ public class CloudWatchReporter extends ScheduledReporter {
                 } else {
                     value = SMALLEST_SENDABLE;
                 }
+                if (stats != null) {
+                    stats.valueClamped(false);
+                }
                 if (!sentTooSmall) {
                     LOG.debug("Value for {} is smaller than what CloudWatch supports; trimming to {}. Further small values won't be logged.", name, value);
                     sentTooSmall = true;
@@ -455,80 +1527,316 @@ public class CloudWatchReporter extends ScheduledReporter {
             } else {
                 value = LARGEST_SENDABLE;
             }
+            if (stats != null) {
+                stats.valueClamped(true);
+            }
             if (!sentTooLarge) {
                 LOG.debug("Value for {} is larger than what CloudWatch supports; trimming to {}. Further large values won't be logged.", name, value);
                 sentTooLarge = true;
             }
         }
-        // TODO limit to 10 dimensions
-        MetricDatum datum = new MetricDatum()
-            .withTimestamp(timestamp)
-            .withValue(value)
-            .withMetricName(name)
-            .withDimensions(dimensions)
-            .withUnit(unit);
+        return value;
+    }
+
+    private <T extends Metric> void sendRegularMetrics(
+                                Date timestamp, SortedMap<String, T> metrics) {
+
+        for (Map.Entry<String, T> entry : metrics.entrySet()) {
+            processEntry(entry, timestamp);
+        }
+    }
 
-        if (!sendToCloudWatch) {
-            LOG.info("Not sending {}", datum);
-        } else if (LOG.isDebugEnabled()) {
-            LOG.debug("Sending {}", datum);
+    /**
+     * Reads the metrics in shards on the collection pool, then sends each shard's values in order.
+     */
+    private void sendShardedMetrics(final Date timestamp, SortedMap<String, Histogram> histograms,
+                                    SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
+        int total = histograms.size() + meters.size() + timers.size();
+        if (total == 0) {
+            return;
+        }
+        // A few shards per thread so one slow shard doesn't hold up the rest
+        int shardSize = Math.max(MIN_SHARD_SIZE, (total + collectionThreads * 4 - 1) / (collectionThreads * 4));
+
+        List<Map.Entry<String, ? extends Metric>> entries = new ArrayList<Map.Entry<String, ? extends Metric>>(total);
+        entries.addAll(histograms.entrySet());
+        entries.addAll(meters.entrySet());
+        entries.addAll(timers.entrySet());
+
+        List<Callable<ShardBuffer>> shards = new ArrayList<Callable<ShardBuffer>>();
+        for (int start = 0; start < total; start += shardSize) {
+            final List<Map.Entry<String, ? extends Metric>> shard =
+                entries.subList(start, Math.min(total, start + shardSize));
+            if (shardBuffers.size() == shards.size()) {
+                shardBuffers.add(new ShardBuffer(shard.size() * 4));
+            }
+            final ShardBuffer buffer = shardBuffers.get(shards.size());
+            buffer.clear();
+            shards.add(new Callable<ShardBuffer>() {
+                @Override
+                public ShardBuffer call() {
+                    shardBuffer.set(buffer);
+                    try {
+                        for (Map.Entry<String, ? extends Metric> entry : shard) {
+                            processEntry(entry, timestamp);
+                        }
+                    } finally {
+                        shardBuffer.remove();
+                    }
+                    return buffer;
+                }
+            });
         }
-        putReq.withMetricData(datum);
 
-        // Can only send 20 metrics at a time
-        if (putReq.getMetricData().size() == 20) {
-            sendToCloudWatch();
+        for (Future<ShardBuffer> shard : collectionPool.invokeAll(shards)) {
+            try {
+                shard.get().sendTo(this);
+            } catch (ExecutionException e) {
+                LOG.error("Error collecting regular metrics:", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
-    private <T extends Metric> void sendRegularMetrics(
-                                Date timestamp, SortedMap<String, T> metrics) {
+    private void processEntry(Map.Entry<String, ? extends Metric> entry, Date timestamp) {
+        if (entry.getValue() != null) {
+            boolean highResolution = isHighResolution(entry.getKey(), entry.getValue());
+            ShardBuffer shard = shardBuffer.get();
+            if (shard != null) {
+                shard.highResolution = highResolution;
+            } else {
+                highResolutionMetric = highResolution;
+            }
+            long before = shard != null ? shard.size() : datumsProduced;
+            try {
+                process(entry.getKey(), entry.getValue(), timestamp);
+                if (stats != null) {
+                    stats.datumsProduced(entry.getValue(), (shard != null ? shard.size() : datumsProduced) - before);
+                }
+            } catch (Exception ignored) {
+                LOG.error("Error printing regular metrics:", ignored);
+            } finally {
+                if (shard != null) {
+                    shard.highResolution = false;
+                } else {
+                    highResolutionMetric = false;
+                }
+            }
+        }
+    }
 
-        for (Map.Entry<String, T> entry : metrics.entrySet()) {
-            final T metric = entry.getValue();
-            if (metric != null) {
-                try {
-                    process(entry.getKey(), entry.getValue(), timestamp);
-                } catch (Exception ignored) {
-                    LOG.error("Error printing regular metrics:", ignored);
+    private boolean isHighResolution(String name, Metric metric) {
+        for (MetricFilter filter : highResolutionFilters) {
+            if (filter.matches(name, metric)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The values read from one shard, with the count each datum carries when delta counts are enabled. Cleared and
+     * reused from tick to tick.
+     */
+    private static class ShardBuffer {
+        private final DatumStore datums;
+        private final LogLinearBuckets buckets = new LogLinearBuckets(ExtendedDatum.MAX_VALUES);
+        private String[] countNames;
+        private long[] counts;
+        // Counts read but not sent because they hadn't changed
+        private String[] seenCountNames = new String[16];
+        private int seenCounts;
+        private String pendingName;
+        private long pendingCount;
+        private boolean highResolution;
+
+        ShardBuffer(int capacity) {
+            this.datums = new DatumStore(capacity);
+            this.countNames = new String[Math.max(capacity, 1)];
+            this.counts = new long[countNames.length];
+        }
+
+        int size() {
+            return datums.size();
+        }
+
+        void clear() {
+            Arrays.fill(countNames, 0, datums.size(), null);
+            datums.clear();
+            Arrays.fill(seenCountNames, 0, seenCounts, null);
+            seenCounts = 0;
+        }
+
+        void countSeen(String name) {
+            if (seenCounts == seenCountNames.length) {
+                seenCountNames = Arrays.copyOf(seenCountNames, seenCounts * 2);
+            }
+            seenCountNames[seenCounts++] = name;
+        }
+
+        void pendingCount(String name, long count) {
+            pendingName = name;
+            pendingCount = count;
+        }
+
+        /** Records the count carried by the datum just added to the store */
+        void added() {
+            int datum = datums.size() - 1;
+            if (datum == countNames.length) {
+                countNames = Arrays.copyOf(countNames, datum * 2);
+                counts = Arrays.copyOf(counts, datum * 2);
+            }
+            countNames[datum] = pendingName;
+            counts[datum] = pendingName == null ? 0L : pendingCount;
+            pendingName = null;
+        }
+
+        /** Sends the values as if they'd been read on the reporting thread */
+        void sendTo(CloudWatchReporter reporter) {
+            for (int i = 0; i < seenCounts; i++) {
+                reporter.countDeltas.seen(seenCountNames[i]);
+            }
+            for (int i = 0; i < datums.size(); i++) {
+                if (countNames[i] != null) {
+                    reporter.pendingCountName = countNames[i];
+                    reporter.pendingCount = counts[i];
                 }
+                reporter.batch.add(datums, i);
+                reporter.datumAdded(null);
             }
         }
     }
 
-    private void sendVMMetrics(Date timestamp) {
+    private List<Dimension> createJVMDimensions() {
+        if (dimensionCache != null) {
+            return dimensionCache.jvmDimensions();
+        }
         List<Dimension> dimensions = new ArrayList<Dimension>();
         for (DimensionAdder adder : dimensionAdders) {
             dimensions.addAll(adder.generateJVMDimensions());
         }
+        return dimensions;
+    }
+
+    private void sendVMMetrics(Date timestamp) {
+        if (!sendJVMMemory && !sendJVMThreads && !sendJVMGC
+                && !sendJVMMemoryPools && !sendJVMBufferPools && !sendJVMAllocationRate) {
+            return;
+        }
+        List<Dimension> dimensions = createJVMDimensions();
+        VirtualMachineMetrics.Sample sample = vm.collect(vmSample);
         if (sendJVMMemory) {
-            sendValue(timestamp, "jvm.memory.heap_usage", vm.heapUsage(), StandardUnit.Percent, dimensions);
-            sendValue(timestamp, "jvm.memory.non_heap_usage", vm.nonHeapUsage(), StandardUnit.Percent, dimensions);
+            // The sample has fractions; CloudWatch's Percent unit means from 0 to 100
+            sendValue(timestamp, "jvm.memory.heap_usage", sample.getHeapUsage() * 100, StandardUnit.Percent, dimensions);
+            sendValue(timestamp, "jvm.memory.non_heap_usage", sample.getNonHeapUsage() * 100, StandardUnit.Percent, dimensions);
         }
 
         if (sendJVMThreads) {
-            sendValue(timestamp, "jvm.thread_count", vm.threadCount(), StandardUnit.Count, dimensions);
-            sendValue(timestamp, "jvm.daemon_thread_count", vm.daemonThreadCount(), StandardUnit.Count, dimensions);
-            for (Map.Entry<Thread.State, Double> entry : vm.threadStatePercentages().entrySet()) {
-                sendValue(timestamp, "jvm.thread-states." + entry.getKey().toString().toLowerCase(), entry.getValue(), StandardUnit.Count, dimensions);
+            sendValue(timestamp, "jvm.thread_count", sample.getThreadCount(), StandardUnit.Count, dimensions);
+            sendValue(timestamp, "jvm.daemon_thread_count", sample.getDaemonThreadCount(), StandardUnit.Count, dimensions);
+            for (Thread.State state : THREAD_STATES) {
+                sendValue(timestamp, THREAD_STATE_NAMES[state.ordinal()], sample.getThreadStateCount(state), StandardUnit.Count, dimensions);
             }
         }
 
         if (sendJVMGC) {
-            for (Map.Entry<String, VirtualMachineMetrics.GarbageCollectorStats> entry : vm.garbageCollectors().entrySet()) {
-                sendValue(timestamp, "jvm.gc." + entry.getKey() + ".time", 
-                        convertIfNecessary(
-                            entry.getValue().getTime(TimeUnit.MILLISECONDS), 
-                            TimeUnit.MILLISECONDS, 
-                            durationUnit),
+            for (int i = 0; i < sample.getGarbageCollectorCount(); i++) {
+                sendValue(timestamp, gcTimeNames[i],
+                        convertDuration(sample.getGarbageCollectorTime(i), TimeUnit.MILLISECONDS),
                         durationUnit, dimensions);
                 
-                sendValue(timestamp, "jvm.gc." + entry.getKey() + ".runs", entry.getValue().getRuns(), StandardUnit.Count, dimensions);
+                sendValue(timestamp, gcRunNames[i], sample.getGarbageCollectorRuns(i), StandardUnit.Count, dimensions);
+            }
+            if (gcNotifications != null) {
+                sendGCNotificationMetrics(timestamp, dimensions);
+            }
+        }
+
+        if (sendJVMMemoryPools) {
+            vm.collectMemoryPools(sample);
+            for (int i = 0; i < sample.getMemoryPoolCount(); i++) {
+                sendValue(timestamp, poolUsedNames[i], sample.getMemoryPoolUsed(i), StandardUnit.Bytes, dimensions);
+                sendValue(timestamp, poolUsageNames[i], sample.getMemoryPoolUsage(i) * 100, StandardUnit.Percent,
+                          dimensions);
+            }
+        }
+
+        if (sendJVMBufferPools) {
+            vm.collectBufferPools(sample);
+            for (int i = 0; i < sample.getBufferPoolCount(); i++) {
+                sendValue(timestamp, bufferCountNames[i], sample.getBufferPoolCount(i), StandardUnit.Count, dimensions);
+                sendValue(timestamp, bufferUsedNames[i], sample.getBufferPoolUsed(i), StandardUnit.Bytes, dimensions);
+                sendValue(timestamp, bufferCapacityNames[i], sample.getBufferPoolCapacity(i), StandardUnit.Bytes, dimensions);
+            }
+        }
+
+        if (sendJVMAllocationRate) {
+            sendAllocationRate(timestamp, vm.collectAllocatedBytes(sample).getAllocatedBytes(), dimensions);
+        }
+    }
+
+    private void sendAllocationRate(Date timestamp, long allocatedBytes, List<Dimension> dimensions) {
+        long now = System.nanoTime();
+        if (allocatedBytes >= 0 && lastAllocatedBytes >= 0 && now > lastAllocatedNanos) {
+            // Summing live threads loses what ended threads allocated, so the total can drop
+            long allocated = Math.max(0, allocatedBytes - lastAllocatedBytes);
+            double perSecond = allocated * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastAllocatedNanos);
+            sendValue(timestamp, "jvm.allocation_rate", perSecond, StandardUnit.BytesSecond, dimensions);
+        }
+        lastAllocatedBytes = allocatedBytes;
+        lastAllocatedNanos = now;
+    }
+
+    /**
+     * Sends what the GC notifications have accumulated since the previous tick, and resets it.
+     */
+    private void sendGCNotificationMetrics(Date timestamp, List<Dimension> dimensions) {
+        for (GcNotificationCollector.CollectorStats stats : gcNotifications.getCollectors()) {
+            sendValue(timestamp, stats.pausesName, stats.pauses.getAndSet(0), StandardUnit.Count, dimensions);
+            sendValue(timestamp, stats.pauseTimeName,
+                    convertDuration(stats.pauseMillis.getAndSet(0), TimeUnit.MILLISECONDS), durationUnit, dimensions);
+            sendValue(timestamp, stats.maxPauseName,
+                    convertDuration(stats.maxPauseMillis.getAndSet(0), TimeUnit.MILLISECONDS), durationUnit, dimensions);
+            if (stats.concurrent) {
+                sendValue(timestamp, stats.cyclesName, stats.cycles.getAndSet(0), StandardUnit.Count, dimensions);
+                sendValue(timestamp, stats.cycleTimeName,
+                        convertDuration(stats.cycleMillis.getAndSet(0), TimeUnit.MILLISECONDS), durationUnit, dimensions);
+            }
+        }
+        sendValue(timestamp, "jvm.gc.promoted", gcNotifications.drainPromotedBytes(), StandardUnit.Bytes, dimensions);
+        for (GcNotificationCollector.PoolStats stats : gcNotifications.getPools()) {
+            long usedAfter = stats.usedAfter.get();
+            if (usedAfter >= 0) {
+                sendValue(timestamp, stats.usedBeforeName, stats.usedBefore.get(), StandardUnit.Bytes, dimensions);
+                sendValue(timestamp, stats.usedAfterName, usedAfter, StandardUnit.Bytes, dimensions);
             }
         }
     }
 
+    /**
+     * Sends values describing the reporter itself.
+     */
+    private void sendReporterMetrics(Date timestamp) {
+        if (gaugeFilter != null) {
+            sendValue(timestamp, "cloudwatch_reporter.suppressed_gauges", gaugeFilter.suppressedPercent(),
+                      StandardUnit.Percent, createJVMDimensions());
+            gaugeFilter.resetTick();
+        }
+        if (sendStats) {
+            MetricRegistry statsRegistry = stats.getRegistry();
+            sendRegularMetrics(timestamp, statsRegistry.getGauges());
+            sendRegularMetrics(timestamp, statsRegistry.getCounters());
+            sendRegularMetrics(timestamp, statsRegistry.getHistograms());
+            sendRegularMetrics(timestamp, statsRegistry.getTimers());
+        }
+    }
+
     private List<Dimension> createDimensions(String name, Metric metric) {
+        if (dimensionCache != null) {
+            return dimensionCache.dimensions(name, metric);
+        }
         List<Dimension> dimensions = new ArrayList<Dimension>();
         for (DimensionAdder adder : dimensionAdders) {
             dimensions.addAll(adder.generate(name, metric));
@@ -536,6 +1844,15 @@ public class CloudWatchReporter extends ScheduledReporter {
         return dimensions;
     }
 
+    private List<Dimension> createMeterDimensions(String name, Metric metric, String meterUnit) {
+        if (dimensionCache != null) {
+            return dimensionCache.meterDimensions(name, metric, meterUnit);
+        }
+        List<Dimension> dimensions = createDimensions(name, metric);
+        dimensions.add(new Dimension().withName("meterUnit").withValue(meterUnit));
+        return dimensions;
+    }
+
     private String sanitizeName(String name) {
         return name;
     }
@@ -564,77 +1881,92 @@ public class CloudWatchReporter extends ScheduledReporter {
     }
     
     public void process(String name, Gauge<?> gauge, Date context) throws Exception {
-        if (gauge.getValue() instanceof Number) {
+        Object value = gauge.getValue();
+        if (value instanceof Number) {
+            double doubleValue = ((Number) value).doubleValue();
+            if (gaugeFilter != null && !gaugeFilter.shouldSend(name, doubleValue, context.getTime())) {
+                return;
+            }
+            List<Dimension> dimensions = createDimensions(name, gauge);
+            if (gaugeFilter != null) {
+                // Only recorded as sent once the batch it goes in has been
+                pendingGaugeName = name;
+                pendingGaugeValue = doubleValue;
+                pendingGaugeMillis = context.getTime();
+            }
             sendValue(context, 
                     sanitizeName(name), 
-                    ((Number) gauge.getValue()).doubleValue(), 
+                    doubleValue, 
                     StandardUnit.None, 
-                    createDimensions(name, gauge));
+                    dimensions);
 
-        } else if (unsendable.add(name)) {
-            LOG.warn("The type of the value for {} is {}. It must be a subclass of Number to send to CloudWatch.", name, gauge.getValue() == null ? "null" : gauge.getValue().getClass());
+        } else {
+            if (stats != null) {
+                stats.unsendableGauge();
+            }
+            if (unsendable.add(name)) {
+                LOG.warn("The type of the value for {} is {}. It must be a subclass of Number to send to CloudWatch.", name, value == null ? "null" : value.getClass());
+            }
         }
     }
 
     public void process(String name, Counter counter, Date context) throws Exception {
-        sendValue(context, 
+        sendCount(context, 
                 sanitizeName(name), 
                 counter.getCount(), 
-                StandardUnit.Count, 
                 createDimensions(name, counter));
     }
 
 
     public void process(String name, Metered meter, Date context) throws Exception {
         List<Dimension> dimensions = createDimensions(name, meter);
-        String sanitizedName = sanitizeName(name);
-        
-        // Rate units by default are seconds. Event type assumed to be "calls"
-        String rateUnits = TimeUnit.SECONDS.toString();
-        String rateUnit = rateUnits.substring(0, rateUnits.length() - 1).toLowerCase(Locale.US);
-        String eventType = "calls";
+        DatumNameTable.Names names = datumNames.get(name, sanitizeName(name));
 
         // We send count before adding an extra dimension for the metric units 
         // (the metrics below are rates and AWS does not provide any built-in dimensions)
         if (sendMeterSummary) {
-            sendValue(context, sanitizedName + ".count", meter.getCount(), StandardUnit.Count, dimensions);
+            sendCount(context, names.count, meter.getCount(), dimensions);
         }        
         
         // CloudWatch only supports its standard units, so this rate won't line up. Instead send the unit as a dimension and call the unit None.
-        dimensions.add(new Dimension().withName("meterUnit").withValue(eventType + '/' + rateUnit));
+        dimensions = createMeterDimensions(name, meter, METER_UNIT);
         if (sendOneMinute) {
-            sendValue(context, sanitizedName + ".1MinuteRate", meter.getOneMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, names.oneMinuteRate, meter.getOneMinuteRate(), StandardUnit.None, dimensions);
         }
         if (sendFiveMinute) {
-            sendValue(context, sanitizedName + ".5MinuteRate", meter.getFiveMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, names.fiveMinuteRate, meter.getFiveMinuteRate(), StandardUnit.None, dimensions);
         }
         if (sendFifteenMinute) {
-            sendValue(context, sanitizedName + ".15MinuteRate", meter.getFifteenMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, names.fifteenMinuteRate, meter.getFifteenMinuteRate(), StandardUnit.None, dimensions);
         }
         if (sendMeterSummary) {
-            sendValue(context, sanitizedName + ".meanRate", meter.getMeanRate(), StandardUnit.None, dimensions);
+            sendValue(context, names.meanRate, meter.getMeanRate(), StandardUnit.None, dimensions);
         }
     }
 
     public void process(String name, Histogram histogram, Date context) throws Exception {
         List<Dimension> dimensions = createDimensions(name, histogram);
-        String sanitizedName = sanitizeName(name);
+        DatumNameTable.Names names = datumNames.get(name, sanitizeName(name));
 
         Snapshot snapshot = histogram.getSnapshot();
-        for (double percentile : percentilesToSend) {
-            if (Double.valueOf(percentile).equals(Double.valueOf(.5))) {
-                sendValue(context, sanitizedName + ".median", snapshot.getMedian(), StandardUnit.None, dimensions);
-            } else {
-                sendValue(context, sanitizedName + "_percentile_" + percentile, 
-                        snapshot.getValue(percentile), StandardUnit.None, dimensions);
-            }
+        if (sendDistributions) {
+            sendDistribution(context, names.base, snapshot, null, dimensions);
+            return;
+        }
+        if (sendStatisticSets && snapshot instanceof CompactSnapshot) {
+            sendStatistics(context, names.base, snapshot, null, dimensions);
+            return;
+        }
+        for (int i = 0; i < percentilesToSend.length; i++) {
+            sendValue(context, names.percentiles[i], snapshot.getValue(percentilesToSend[i]), StandardUnit.None,
+                      dimensions);
         }
         
         if (sendHistoLifetime) {
-            sendValue(context, sanitizedName + ".min", snapshot.getMin(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".max", snapshot.getMax(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".mean", snapshot.getMean(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".stddev", snapshot.getStdDev(), StandardUnit.None, dimensions);
+            sendValue(context, names.min, snapshot.getMin(), StandardUnit.None, dimensions);
+            sendValue(context, names.max, snapshot.getMax(), StandardUnit.None, dimensions);
+            sendValue(context, names.mean, snapshot.getMean(), StandardUnit.None, dimensions);
+            sendValue(context, names.stddev, snapshot.getStdDev(), StandardUnit.None, dimensions);
         }
     }
 
@@ -646,21 +1978,41 @@ public class CloudWatchReporter extends ScheduledReporter {
         process(name, (Metered)timer, context);
 
         List<Dimension> dimensions = createDimensions(name, timer);
-        String sanitizedName = sanitizeName(name);
+        DatumNameTable.Names names = datumNames.get(name, sanitizeName(name));
         Snapshot snapshot = timer.getSnapshot();
-        for (double percentile : percentilesToSend) {
-            if (Double.valueOf(percentile).equals(Double.valueOf(.5))) {
-                sendValue(context, sanitizedName + ".median", convertIfNecessary(snapshot.getMedian(), recordedUnit, durationUnit), durationUnit, dimensions);
-            } else {
-                sendValue(context, sanitizedName + "_percentile_" + percentile, convertIfNecessary(snapshot.getValue(percentile), recordedUnit, durationUnit), durationUnit, dimensions);
-            }
+        if (sendDistributions) {
+            sendDistribution(context, names.base, snapshot, recordedUnit, dimensions);
+            return;
+        }
+        if (sendStatisticSets && snapshot instanceof CompactSnapshot) {
+            sendStatistics(context, names.base, snapshot, recordedUnit, dimensions);
+            return;
+        }
+        for (int i = 0; i < percentilesToSend.length; i++) {
+            sendValue(context, names.percentiles[i], convertDuration(snapshot.getValue(percentilesToSend[i]), recordedUnit), durationUnit, dimensions);
         }
         if (sendTimerLifetime) {
-            sendValue(context, sanitizedName + ".min", convertIfNecessary(snapshot.getMin(), recordedUnit, durationUnit), durationUnit, dimensions);
-            sendValue(context, sanitizedName + ".max", convertIfNecessary(snapshot.getMax(), recordedUnit, durationUnit), durationUnit, dimensions);
-            sendValue(context, sanitizedName + ".mean", convertIfNecessary(snapshot.getMean(), recordedUnit, durationUnit), durationUnit, dimensions);
-            sendValue(context, sanitizedName + ".stddev", convertIfNecessary(snapshot.getStdDev(), recordedUnit, durationUnit), durationUnit, dimensions);
+            sendValue(context, names.min, convertDuration(snapshot.getMin(), recordedUnit), durationUnit, dimensions);
+            sendValue(context, names.max, convertDuration(snapshot.getMax(), recordedUnit), durationUnit, dimensions);
+            sendValue(context, names.mean, convertDuration(snapshot.getMean(), recordedUnit), durationUnit, dimensions);
+            sendValue(context, names.stddev, convertDuration(snapshot.getStdDev(), recordedUnit), durationUnit, dimensions);
+        }
+    }
+
+    /** Converts a duration recorded in recordedUnit into the unit sent to CloudWatch. */
+    private double convertDuration(double value, TimeUnit recordedUnit) {
+        return convertIfNecessary(value, recordedUnit, durationTimeUnit);
+    }
+
+    /**
+     * Converts a duration recorded in recordedUnit into the unit sent to CloudWatch, keeping the fraction of a unit
+     * that {@link #convertDuration} drops.
+     */
+    private double convertDurationExactly(double value, TimeUnit recordedUnit) {
+        if (recordedUnit == durationTimeUnit) {
+            return value;
         }
+        return value * recordedUnit.toNanos(1) / durationTimeUnit.toNanos(1);
     }
 
     /** If recordedUnit doesn't match sendUnit, converts recordedUnit into sendUnit. Otherwise, value is returned unchanged. */
@@ -671,8 +2023,7 @@ public class CloudWatchReporter extends ScheduledReporter {
         return sendUnit.convert((long) value, recordedUnit);
     }
     
-    private static double convertIfNecessary(double value, TimeUnit recordedUnit, StandardUnit sendUnit) {
-        TimeUnit sendUnitConvert = TimeUnit.valueOf(sendUnit.toString().toUpperCase());
-        return convertIfNecessary(value, recordedUnit, sendUnitConvert);
+    private static TimeUnit toTimeUnit(StandardUnit unit) {
+        return TimeUnit.valueOf(unit.toString().toUpperCase(Locale.US));
     }
 }
@@ -0,0 +1,12 @@
+package com.plausiblelabs.metrics.reporting;
+
+/**
+ * A snapshot the reporter can summarise without copying out every value with <code>Snapshot.getValues()</code>. It
+ * holds only the values recorded since the previous snapshot, so its size is the number of events in the interval.
+ */
+interface CompactSnapshot extends LogLinearBuckets.SortedValues {
+    /**
+     * @return the sum of the values in the snapshot
+     */
+    double getSum();
+}
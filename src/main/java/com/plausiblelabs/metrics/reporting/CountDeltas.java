@@ -0,0 +1,92 @@
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Tracks the last count sent for each counter and meter so only the increment since then is reported. A count only
+ * becomes the new baseline once the batch carrying it has been sent successfully; the increment from a failed batch
+ * is folded into the next tick's delta rather than lost.</p>
+ *
+ * <p>Names that go unseen for a number of ticks, such as those of removed metrics, are forgotten. A count below the
+ * last one sent is taken to be from a metric that was reset, or removed and registered again, and is sent whole.</p>
+ *
+ * <p>{@link #delta} may be called from collection threads while the reporting thread waits for them; everything
+ * else is called from the reporting thread.</p>
+ */
+class CountDeltas {
+    private final StringLongMap lastSent = new StringLongMap();
+    // The tick each name was last seen in
+    private final StringLongMap lastSeen = new StringLongMap();
+    private long tick;
+    private final SentBatches sent = new SentBatches();
+
+    // Counts added to batches this tick, in batch order
+    private String[] names = new String[64];
+    private long[] counts = new long[64];
+    private int size;
+
+    /**
+     * @return the difference between <code>count</code> and the last successfully sent count for the name. A name
+     * that has never been sent, or whose count has gone down since, reports its whole count.
+     */
+    long delta(String name, long count) {
+        long last = lastSent.get(name, 0);
+        return count < last ? count : count - last;
+    }
+
+    /**
+     * Records that the name was read this tick, though nothing was sent for it.
+     */
+    void seen(String name) {
+        lastSeen.put(name, tick);
+    }
+
+    /**
+     * Records that <code>count</code> was added to the current batch under the given name.
+     */
+    void pending(String name, long count) {
+        seen(name);
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        names[size] = name;
+        counts[size] = count;
+        size++;
+    }
+
+    /**
+     * Marks the end of the current batch.
+     *
+     * @param future the batch's send, or <code>null</code> if it wasn't sent remotely and counts as delivered
+     */
+    void batchSent(Future<?> future) {
+        sent.batchSent(future, size);
+    }
+
+    /**
+     * Adopts the counts from every successfully sent batch as the new baselines and resets for the next tick. Must
+     * be called once all the tick's sends have completed.
+     *
+     * @param keepTicks how many ticks, including this one, a name is kept without being seen
+     */
+    void commit(int keepTicks) {
+        int start = 0;
+        for (int batch = 0; batch < sent.size(); batch++) {
+            int end = sent.end(batch);
+            if (sent.succeeded(batch)) {
+                for (int i = start; i < end; i++) {
+                    lastSent.put(names[i], counts[i]);
+                }
+            }
+            start = end;
+        }
+        sent.clear();
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        lastSeen.removeValuesBelow(tick - keepTicks + 1);
+        lastSent.retainKeysOf(lastSeen);
+        tick++;
+    }
+}
@@ -0,0 +1,90 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.codahale.metrics.MetricRegistryListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds the names of the datums sent for each metric once, rather than concatenating them on every tick. Entries are
+ * dropped when their metric is removed from the registry this is listening to.
+ */
+class DatumNameTable extends MetricRegistryListener.Base {
+    /**
+     * The datum names for a single metric.
+     */
+    static class Names {
+        final String base;
+        final String count;
+        final String oneMinuteRate, fiveMinuteRate, fifteenMinuteRate, meanRate;
+        /** Names for each of the reporter's percentiles, in the same order */
+        final String[] percentiles;
+        final String min, max, mean, stddev;
+
+        Names(String base, double[] percentilesToSend) {
+            this.base = base;
+            this.count = base + ".count";
+            this.oneMinuteRate = base + ".1MinuteRate";
+            this.fiveMinuteRate = base + ".5MinuteRate";
+            this.fifteenMinuteRate = base + ".15MinuteRate";
+            this.meanRate = base + ".meanRate";
+            this.percentiles = new String[percentilesToSend.length];
+            for (int i = 0; i < percentilesToSend.length; i++) {
+                if (Double.valueOf(percentilesToSend[i]).equals(Double.valueOf(.5))) {
+                    percentiles[i] = base + ".median";
+                } else {
+                    percentiles[i] = base + "_percentile_" + percentilesToSend[i];
+                }
+            }
+            this.min = base + ".min";
+            this.max = base + ".max";
+            this.mean = base + ".mean";
+            this.stddev = base + ".stddev";
+        }
+    }
+
+    private final double[] percentilesToSend;
+    private final ConcurrentMap<String, Names> names = new ConcurrentHashMap<String, Names>();
+
+    DatumNameTable(double[] percentilesToSend) {
+        this.percentilesToSend = percentilesToSend;
+    }
+
+    /**
+     * @param name the metric's name in the registry
+     * @param sanitizedName the name to build the datum names from
+     */
+    Names get(String name, String sanitizedName) {
+        Names found = names.get(name);
+        if (found == null) {
+            found = new Names(sanitizedName, percentilesToSend);
+            names.put(name, found);
+        }
+        return found;
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        names.remove(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        names.remove(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        names.remove(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        names.remove(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        names.remove(name);
+    }
+}
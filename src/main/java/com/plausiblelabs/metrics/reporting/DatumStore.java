@@ -0,0 +1,354 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <p>Datums kept in parallel arrays rather than as SDK objects, so collecting a tick's values allocates nothing once
+ * the arrays have grown to fit them. Names, units and dimension lists are held by reference, so the shared instances
+ * from {@link DatumNameTable} and {@link DimensionCache} act as ids. The store is cleared and refilled rather than
+ * replaced, keeping its arrays, including those of distributions.</p>
+ *
+ * <p>{@link #subList} presents a range of datums as <code>MetricDatum</code>s, built as they're read. Each is built at
+ * most once until the store is cleared, and may be kept after that; the list itself may not. The SDK's client and
+ * its request handlers only take <code>MetricDatum</code>s, so each datum is still built once for the request that
+ * sends it. That allocation at the SDK boundary is intended; collecting the tick's values into the store allocates
+ * nothing.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class DatumStore {
+    private static final byte VALUE = 0;
+    private static final byte STATISTICS = 1;
+    private static final byte DISTRIBUTION = 2;
+
+    private int size;
+    private byte[] kinds;
+    private long[] timestamps;
+    private String[] names;
+    private StandardUnit[] units;
+    private List<?>[] dimensions;
+    private boolean[] highResolution;
+    // The value, or the sample count of a statistic set, or the number of values in a distribution
+    private double[] values;
+    private double[] sums;
+    private double[] minimums;
+    private double[] maximums;
+    // Allocated the first time a slot holds a distribution, then reused
+    private double[][] distributionValues;
+    private double[][] distributionCounts;
+    private MetricDatum[] built;
+
+    DatumStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        kinds = new byte[capacity];
+        timestamps = new long[capacity];
+        names = new String[capacity];
+        units = new StandardUnit[capacity];
+        dimensions = new List<?>[capacity];
+        highResolution = new boolean[capacity];
+        values = new double[capacity];
+        sums = new double[capacity];
+        minimums = new double[capacity];
+        maximums = new double[capacity];
+        distributionValues = new double[capacity][];
+        distributionCounts = new double[capacity][];
+        built = new MetricDatum[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Empties the store, keeping its arrays for the next datums.
+     */
+    void clear() {
+        Arrays.fill(built, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * @return the index of the datum
+     */
+    int addValue(long timestamp, String name, double value, StandardUnit unit, List<Dimension> dimensions,
+                 boolean highResolution) {
+        int i = add(VALUE, timestamp, name, unit, dimensions, highResolution);
+        values[i] = value;
+        return i;
+    }
+
+    int addStatistics(long timestamp, String name, double sampleCount, double sum, double minimum, double maximum,
+                      StandardUnit unit, List<Dimension> dimensions, boolean highResolution) {
+        int i = add(STATISTICS, timestamp, name, unit, dimensions, highResolution);
+        values[i] = sampleCount;
+        sums[i] = sum;
+        minimums[i] = minimum;
+        maximums[i] = maximum;
+        return i;
+    }
+
+    /**
+     * Adds a distribution of <code>size</code> values, to be filled in with {@link #setDistributionValue}.
+     */
+    int addDistribution(long timestamp, String name, int size, StandardUnit unit, List<Dimension> dimensions,
+                        boolean highResolution) {
+        if (size > ExtendedDatum.MAX_VALUES) {
+            throw new IllegalArgumentException("At most " + ExtendedDatum.MAX_VALUES + " values in a distribution");
+        }
+        int i = add(DISTRIBUTION, timestamp, name, unit, dimensions, highResolution);
+        values[i] = size;
+        if (distributionValues[i] == null) {
+            distributionValues[i] = new double[ExtendedDatum.MAX_VALUES];
+            distributionCounts[i] = new double[ExtendedDatum.MAX_VALUES];
+        }
+        return i;
+    }
+
+    void setDistributionValue(int i, int j, double value, double count) {
+        distributionValues[i][j] = value;
+        distributionCounts[i][j] = count;
+    }
+
+    /**
+     * Shortens the distribution to its first <code>size</code> values.
+     */
+    void setDistributionSize(int i, int size) {
+        values[i] = size;
+        built[i] = null;
+    }
+
+    /**
+     * Adds a copy of a datum from another store.
+     */
+    int add(DatumStore from, int j) {
+        int i = add(from.kinds[j], from.timestamps[j], from.names[j], from.units[j], from.dimensions[j],
+                    from.highResolution[j]);
+        values[i] = from.values[j];
+        sums[i] = from.sums[j];
+        minimums[i] = from.minimums[j];
+        maximums[i] = from.maximums[j];
+        if (kinds[i] == DISTRIBUTION) {
+            if (distributionValues[i] == null) {
+                distributionValues[i] = new double[ExtendedDatum.MAX_VALUES];
+                distributionCounts[i] = new double[ExtendedDatum.MAX_VALUES];
+            }
+            int length = (int) values[i];
+            System.arraycopy(from.distributionValues[j], 0, distributionValues[i], 0, length);
+            System.arraycopy(from.distributionCounts[j], 0, distributionCounts[i], 0, length);
+        }
+        return i;
+    }
+
+    /**
+     * Drops the last datum.
+     */
+    void removeLast() {
+        built[--size] = null;
+    }
+
+    void setDimensions(int i, List<Dimension> dimensions) {
+        this.dimensions[i] = dimensions;
+        built[i] = null;
+    }
+
+    /**
+     * Drops every datum but the last, which becomes the first.
+     */
+    void keepLast() {
+        int last = size - 1;
+        if (last > 0) {
+            kinds[0] = kinds[last];
+            timestamps[0] = timestamps[last];
+            names[0] = names[last];
+            units[0] = units[last];
+            dimensions[0] = dimensions[last];
+            highResolution[0] = highResolution[last];
+            values[0] = values[last];
+            sums[0] = sums[last];
+            minimums[0] = minimums[last];
+            maximums[0] = maximums[last];
+            // Swap rather than copy, so each slot keeps arrays of its own
+            double[] swap = distributionValues[0];
+            distributionValues[0] = distributionValues[last];
+            distributionValues[last] = swap;
+            swap = distributionCounts[0];
+            distributionCounts[0] = distributionCounts[last];
+            distributionCounts[last] = swap;
+            built[0] = built[last];
+            Arrays.fill(built, 1, size, null);
+            size = 1;
+        }
+    }
+
+    private int add(byte kind, long timestamp, String name, StandardUnit unit, List<?> dimensions,
+                    boolean highResolution) {
+        if (size == kinds.length) {
+            grow();
+        }
+        int i = size++;
+        kinds[i] = kind;
+        timestamps[i] = timestamp;
+        names[i] = name;
+        units[i] = unit;
+        this.dimensions[i] = dimensions;
+        this.highResolution[i] = highResolution;
+        return i;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        names = Arrays.copyOf(names, capacity);
+        units = Arrays.copyOf(units, capacity);
+        dimensions = Arrays.copyOf(dimensions, capacity);
+        highResolution = Arrays.copyOf(highResolution, capacity);
+        values = Arrays.copyOf(values, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        minimums = Arrays.copyOf(minimums, capacity);
+        maximums = Arrays.copyOf(maximums, capacity);
+        distributionValues = Arrays.copyOf(distributionValues, capacity);
+        distributionCounts = Arrays.copyOf(distributionCounts, capacity);
+        built = Arrays.copyOf(built, capacity);
+    }
+
+    long timestamp(int i) {
+        return timestamps[i];
+    }
+
+    String name(int i) {
+        return names[i];
+    }
+
+    StandardUnit unit(int i) {
+        return units[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Dimension> dimensions(int i) {
+        return (List<Dimension>) dimensions[i];
+    }
+
+    boolean isValue(int i) {
+        return kinds[i] == VALUE;
+    }
+
+    boolean isStatistics(int i) {
+        return kinds[i] == STATISTICS;
+    }
+
+    boolean isDistribution(int i) {
+        return kinds[i] == DISTRIBUTION;
+    }
+
+    boolean isHighResolution(int i) {
+        return highResolution[i];
+    }
+
+    /**
+     * @return the value, or the sample count of a statistic set
+     */
+    double value(int i) {
+        return values[i];
+    }
+
+    double sum(int i) {
+        return sums[i];
+    }
+
+    double minimum(int i) {
+        return minimums[i];
+    }
+
+    double maximum(int i) {
+        return maximums[i];
+    }
+
+    int distributionSize(int i) {
+        return (int) values[i];
+    }
+
+    double distributionValue(int i, int j) {
+        return distributionValues[i][j];
+    }
+
+    double distributionCount(int i, int j) {
+        return distributionCounts[i][j];
+    }
+
+    /**
+     * @return the datum as an SDK object, an {@link ExtendedDatum} if it's high resolution or a distribution
+     */
+    MetricDatum datum(int i) {
+        if (built[i] != null) {
+            return built[i];
+        }
+        MetricDatum datum;
+        if (highResolution[i] || kinds[i] == DISTRIBUTION) {
+            ExtendedDatum extended = new ExtendedDatum()
+                .withStorageResolution(highResolution[i] ? ExtendedDatum.HIGH_RESOLUTION : null);
+            if (kinds[i] == DISTRIBUTION) {
+                int length = distributionSize(i);
+                extended.withValues(Arrays.copyOf(distributionValues[i], length),
+                                    Arrays.copyOf(distributionCounts[i], length));
+            }
+            datum = extended;
+        } else {
+            datum = new MetricDatum();
+        }
+        if (kinds[i] == VALUE) {
+            datum.withValue(values[i]);
+        } else if (kinds[i] == STATISTICS) {
+            datum.withStatisticValues(new StatisticSet()
+                .withSampleCount(values[i])
+                .withSum(sums[i])
+                .withMinimum(minimums[i])
+                .withMaximum(maximums[i]));
+        }
+        datum.withTimestamp(new Date(timestamps[i]))
+            .withMetricName(names[i])
+            .withDimensions(dimensions(i))
+            .withUnit(units[i]);
+        built[i] = datum;
+        return datum;
+    }
+
+    /**
+     * @return the datums from <code>from</code> up to <code>to</code>, valid until the store is next changed
+     */
+    List<MetricDatum> subList(int from, int to) {
+        return new Datums(from, to);
+    }
+
+    private class Datums extends AbstractList<MetricDatum> implements RandomAccess {
+        private final int from;
+        private final int size;
+
+        Datums(int from, int to) {
+            this.from = from;
+            this.size = to - from;
+        }
+
+        @Override
+        public MetricDatum get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return datum(from + index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
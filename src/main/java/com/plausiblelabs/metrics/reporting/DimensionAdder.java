@@ -15,7 +15,8 @@ import com.codahale.metrics.Metric;
 public interface DimensionAdder {
     /**
      * Return dimensions to be added to the given metric. May conditionally return no dimensions if not all metrics
-     * should have the same dimensions.
+     * should have the same dimensions. Called from several threads at once when the reporter reads metrics in
+     * parallel; see {@link CloudWatchReporter.Enabler#withParallelCollection}.
      * @param name the metric's name
      * @param metric the metric
      * @return dimensions to add to the metric's values in CloudWatch
@@ -0,0 +1,164 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Holds the dimensions generated for each metric so the {@link DimensionAdder}s only run when something may have
+ * changed. The cached lists are immutable and shared between ticks.</p>
+ *
+ * <p>A metric's dimensions are dropped when it's added to or removed from the registry this is listening to, and
+ * everything is dropped when a {@link VersionedDimensionAdder} reports a new version. Lookups happen on the reporting
+ * thread, while registry notifications arrive on whichever thread changes the registry.</p>
+ */
+class DimensionCache implements MetricRegistryListener {
+    private final List<DimensionAdder> adders;
+    private final ConcurrentMap<String, List<Dimension>> dimensions = new ConcurrentHashMap<String, List<Dimension>>();
+    private final ConcurrentMap<String, List<Dimension>> meterDimensions =
+        new ConcurrentHashMap<String, List<Dimension>>();
+    // Bumped on every invalidation so lookups racing with one don't cache what they generated
+    private final AtomicLong generation = new AtomicLong();
+
+    private List<Dimension> jvmDimensions;
+    private long adderVersions = -1;
+
+    DimensionCache(List<DimensionAdder> adders) {
+        this.adders = adders;
+    }
+
+    /**
+     * Drops everything if any adder's version has changed since the last call. Call at the start of each tick.
+     */
+    void checkAdderVersions() {
+        long versions = 0;
+        for (DimensionAdder adder : adders) {
+            if (adder instanceof VersionedDimensionAdder) {
+                versions += ((VersionedDimensionAdder) adder).getVersion();
+            }
+        }
+        if (versions != adderVersions) {
+            adderVersions = versions;
+            generation.incrementAndGet();
+            dimensions.clear();
+            meterDimensions.clear();
+            jvmDimensions = null;
+        }
+    }
+
+    List<Dimension> jvmDimensions() {
+        if (jvmDimensions == null) {
+            List<Dimension> generated = new ArrayList<Dimension>();
+            for (DimensionAdder adder : adders) {
+                generated.addAll(adder.generateJVMDimensions());
+            }
+            jvmDimensions = Collections.unmodifiableList(generated);
+        }
+        return jvmDimensions;
+    }
+
+    List<Dimension> dimensions(String name, Metric metric) {
+        List<Dimension> cached = dimensions.get(name);
+        if (cached == null) {
+            long expectedGeneration = generation.get();
+            List<Dimension> generated = new ArrayList<Dimension>();
+            for (DimensionAdder adder : adders) {
+                generated.addAll(adder.generate(name, metric));
+            }
+            cached = Collections.unmodifiableList(generated);
+            cacheIfCurrent(dimensions, name, cached, expectedGeneration);
+        }
+        return cached;
+    }
+
+    /**
+     * @return the metric's dimensions plus a <code>meterUnit</code> dimension with the given value
+     */
+    List<Dimension> meterDimensions(String name, Metric metric, String meterUnit) {
+        List<Dimension> cached = meterDimensions.get(name);
+        if (cached == null) {
+            long expectedGeneration = generation.get();
+            List<Dimension> generated = new ArrayList<Dimension>(dimensions(name, metric));
+            generated.add(new Dimension().withName("meterUnit").withValue(meterUnit));
+            cached = Collections.unmodifiableList(generated);
+            cacheIfCurrent(meterDimensions, name, cached, expectedGeneration);
+        }
+        return cached;
+    }
+
+    private void cacheIfCurrent(ConcurrentMap<String, List<Dimension>> cache, String name, List<Dimension> generated,
+                                long expectedGeneration) {
+        cache.put(name, generated);
+        if (generation.get() != expectedGeneration) {
+            cache.remove(name, generated);
+        }
+    }
+
+    private void invalidate(String name) {
+        generation.incrementAndGet();
+        dimensions.remove(name);
+        meterDimensions.remove(name);
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        invalidate(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        invalidate(name);
+    }
+}
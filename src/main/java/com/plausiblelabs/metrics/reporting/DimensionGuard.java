@@ -0,0 +1,232 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Keeps the dimensions of the datums sent within CloudWatch's limit of 10, and optionally caps the number of
+ * series, each a metric name with a combination of dimensions, so a dimension adder that puts something like request
+ * ids in its values can't create an unbounded number of custom metrics.</p>
+ *
+ * <p>A series is admitted while its metric name has fewer than the per-metric cap and the reporter fewer than the
+ * global budget, and stays admitted for the life of the reporter. Admitted series are remembered by a 64-bit hash of
+ * their name and dimensions, so memory is bounded by the budget. A series over budget is either dropped or collapsed
+ * into its metric's <code>other</code> series, which has the same dimension names with every value
+ * <code>other</code>. A HyperLogLog sketch estimates how many distinct series there were in all, including those over
+ * budget, without remembering them. The reporter's own series and the JVM's are only truncated, never budgeted or
+ * counted.</p>
+ *
+ * <p>Used from the reporting thread only.</p>
+ */
+class DimensionGuard {
+    private static final Logger LOG = LoggerFactory.getLogger(DimensionGuard.class);
+
+    /** The most dimensions CloudWatch accepts on a datum */
+    static final int MAX_DIMENSIONS = 10;
+    static final String OTHER = "other";
+
+    private static final int SKETCH_BITS = 12;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maxSeriesPerMetric;
+    private final int maxSeries;
+    private final boolean collapse;
+    private final ReporterMetrics stats;
+    // Open addressing; 0 marks an empty slot, so a hash of 0 is stored as 1
+    private long[] admitted;
+    private int admittedCount;
+    private final StringLongMap seriesPerMetric = new StringLongMap();
+    private final Map<String, List<Dimension>> otherDimensions = new HashMap<String, List<Dimension>>();
+    private final byte[] sketch = new byte[1 << SKETCH_BITS];
+    private final Set<String> overBudgetLogged = new HashSet<String>();
+    private boolean budgetLogged;
+    private boolean truncationLogged;
+
+    /**
+     * @param maxSeriesPerMetric the most series for each metric name, or 0 for no limits beyond the dimension count
+     * @param maxSeries the most series in all
+     * @param collapse if series over budget are collapsed into their metric's <code>other</code> series rather than
+     * dropped
+     * @param stats where to count truncations and series over budget, or null
+     */
+    DimensionGuard(int maxSeriesPerMetric, int maxSeries, boolean collapse, ReporterMetrics stats) {
+        this.maxSeriesPerMetric = maxSeriesPerMetric;
+        this.maxSeries = maxSeries;
+        this.collapse = collapse;
+        this.stats = stats;
+        this.admitted = new long[16];
+    }
+
+    /**
+     * @param budgeted if the datum counts against the series budgets. The reporter's own and the JVM's don't.
+     * @return the dimensions to send the datum with: the given ones, the first 10 of them, or those of the metric's
+     * <code>other</code> series; or null if the datum should be dropped
+     */
+    List<Dimension> check(String name, List<Dimension> dimensions, boolean budgeted) {
+        if (dimensions != null && dimensions.size() > MAX_DIMENSIONS) {
+            if (!truncationLogged) {
+                LOG.warn("{} has {} dimensions; sending only the first 10. Further truncations won't be logged.",
+                         name, dimensions.size());
+                truncationLogged = true;
+            }
+            if (stats != null) {
+                stats.dimensionsTruncated();
+            }
+            dimensions = dimensions.subList(0, MAX_DIMENSIONS);
+        }
+        if (maxSeriesPerMetric == 0 || !budgeted) {
+            return dimensions;
+        }
+        long hash = hash(name, dimensions);
+        addToSketch(hash);
+        if (isAdmitted(hash)) {
+            return dimensions;
+        }
+        long metricSeries = seriesPerMetric.get(name, 0);
+        if (metricSeries < maxSeriesPerMetric && admittedCount < maxSeries) {
+            admit(hash);
+            seriesPerMetric.put(name, metricSeries + 1);
+            return dimensions;
+        }
+        String action = collapse ? "collapsing" : "dropping";
+        if (metricSeries >= maxSeriesPerMetric) {
+            if (overBudgetLogged.add(name)) {
+                LOG.warn("{} has reached its limit of {} series; " + action + " the rest.", name, maxSeriesPerMetric);
+            }
+        } else if (!budgetLogged) {
+            LOG.warn("The reporter has reached its limit of {} series; {} new series from now on.", maxSeries, action);
+            budgetLogged = true;
+        }
+        if (stats != null) {
+            stats.seriesOverBudget(collapse);
+        }
+        return collapse ? otherDimensions(name, dimensions) : null;
+    }
+
+    /**
+     * @return the approximate number of distinct series checked, including those over budget
+     */
+    long estimatedSeries() {
+        int registers = sketch.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : sketch) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / registers);
+        double estimate = alpha * registers * registers / sum;
+        if (estimate <= 2.5 * registers && zeros > 0) {
+            // Linear counting is more accurate while many registers are still empty
+            estimate = registers * Math.log((double) registers / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    int admittedSeries() {
+        return admittedCount;
+    }
+
+    private List<Dimension> otherDimensions(String name, List<Dimension> dimensions) {
+        List<Dimension> other = otherDimensions.get(name);
+        if (other == null || !sameNames(other, dimensions)) {
+            other = new ArrayList<Dimension>(dimensions == null ? 0 : dimensions.size());
+            if (dimensions != null) {
+                for (Dimension dimension : dimensions) {
+                    other.add(new Dimension().withName(dimension.getName()).withValue(OTHER));
+                }
+            }
+            otherDimensions.put(name, other);
+        }
+        return other;
+    }
+
+    private static boolean sameNames(List<Dimension> other, List<Dimension> dimensions) {
+        int size = dimensions == null ? 0 : dimensions.size();
+        if (other.size() != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            String name = dimensions.get(i).getName();
+            if (name == null ? other.get(i).getName() != null : !name.equals(other.get(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToSketch(long hash) {
+        int register = (int) (hash >>> (64 - SKETCH_BITS));
+        // The position of the first set bit in the rest of the hash, from 1
+        int rank = Long.numberOfLeadingZeros((hash << SKETCH_BITS) | (1L << (SKETCH_BITS - 1))) + 1;
+        if (rank > sketch[register]) {
+            sketch[register] = (byte) rank;
+        }
+    }
+
+    private boolean isAdmitted(long hash) {
+        return admitted[slot(hash)] != 0;
+    }
+
+    private void admit(long hash) {
+        admitted[slot(hash)] = hash == 0 ? 1 : hash;
+        if (++admittedCount * 2 > admitted.length) {
+            long[] old = admitted;
+            admitted = new long[old.length << 1];
+            for (long member : old) {
+                if (member != 0) {
+                    admitted[slot(member)] = member;
+                }
+            }
+        }
+    }
+
+    private int slot(long hash) {
+        long stored = hash == 0 ? 1 : hash;
+        int mask = admitted.length - 1;
+        int slot = (int) (stored ^ (stored >>> 32)) & mask;
+        while (admitted[slot] != 0 && admitted[slot] != stored) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return a 64-bit FNV-1a hash of the name and dimensions, mixed so its top bits are as good as the rest
+     */
+    static long hash(String name, List<Dimension> dimensions) {
+        long hash = hash(FNV_OFFSET, name);
+        if (dimensions != null) {
+            for (int i = 0; i < dimensions.size(); i++) {
+                hash = hash(hash, dimensions.get(i).getName());
+                hash = hash(hash, dimensions.get(i).getValue());
+            }
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long hash(long hash, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separates the strings, so "ab" + "c" differs from "a" + "bc"
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,309 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Writes datums as <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html">
+ * CloudWatch Embedded Metric Format</a> documents, one JSON object per line, for the CloudWatch agent or a log
+ * group subscription to turn into metrics.</p>
+ *
+ * <p>Datums with the same timestamp and dimensions share a document, up to 100 metrics each. EMF has no statistic
+ * sets, value counts, NaN or infinite values, so datums carrying them are skipped. Metric and dimension values share
+ * the document's top level, so datums named <code>_aws</code> or after one of their dimensions are skipped too,
+ * rather than overwrite the dimension. Each batch is built in a buffer that's kept between
+ * batches and written to the stream in one call on the reporting thread, so a line is never split between
+ * writes.</p>
+ */
+class EmbeddedMetricSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedMetricSink.class);
+
+    /** The most metrics in an EMF document */
+    static final int MAX_METRICS = 100;
+
+    private final String namespace;
+    private final OutputStream out;
+    private final boolean closeStream;
+    private final ReporterMetrics stats;
+    private final StringBuilder json = new StringBuilder(4096);
+    private byte[] bytes = new byte[4096];
+    private boolean skipLogged, nonFiniteLogged, nameClashLogged;
+
+    /**
+     * @param closeStream if the stream is closed along with the sink
+     * @param stats records the writes, or null
+     */
+    EmbeddedMetricSink(String namespace, OutputStream out, boolean closeStream, ReporterMetrics stats) {
+        this.namespace = namespace;
+        this.out = out;
+        this.closeStream = closeStream;
+        this.stats = stats;
+    }
+
+    /**
+     * Writes the datums and flushes the stream before returning.
+     *
+     * @return null once written, or a completed write that failed if the stream couldn't be written
+     */
+    @Override
+    public Future<?> write(List<MetricDatum> datums) {
+        try {
+            writeLines(datums);
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Error writing embedded metrics: {}", e.getMessage());
+            if (stats != null) {
+                stats.datumsDropped(datums.size());
+            }
+            return new FailedWrite(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closeStream) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close embedded metric stream", e);
+            }
+        }
+    }
+
+    private synchronized void writeLines(List<MetricDatum> datums) throws IOException {
+        json.setLength(0);
+        for (List<MetricDatum> group : groupByDimensions(datums).values()) {
+            appendDocuments(group);
+        }
+        int length = encode();
+        out.write(bytes, 0, length);
+        out.flush();
+    }
+
+    private Map<List<Dimension>, List<MetricDatum>> groupByDimensions(List<MetricDatum> datums) {
+        Map<List<Dimension>, List<MetricDatum>> groups = new LinkedHashMap<List<Dimension>, List<MetricDatum>>();
+        for (MetricDatum datum : datums) {
+            if (datum.getValue() == null) {
+                if (!skipLogged) {
+                    LOG.warn("Skipping {}, as Embedded Metric Format only has single values. Further skipped values won't be logged.",
+                             datum.getMetricName());
+                    skipLogged = true;
+                }
+                continue;
+            }
+            if (datum.getValue().isNaN() || datum.getValue().isInfinite()) {
+                if (!nonFiniteLogged) {
+                    LOG.warn("Skipping {} with value {}, as JSON has no NaN or infinite numbers. Further such values won't be logged.",
+                             datum.getMetricName(), datum.getValue());
+                    nonFiniteLogged = true;
+                }
+                continue;
+            }
+            if (clashesWithKey(datum)) {
+                if (!nameClashLogged) {
+                    LOG.warn("Skipping {}, as its name is taken by a dimension or the metadata in its document. Further such metrics won't be logged.",
+                             datum.getMetricName());
+                    nameClashLogged = true;
+                }
+                continue;
+            }
+            List<MetricDatum> group = groups.get(datum.getDimensions());
+            if (group == null) {
+                group = new ArrayList<MetricDatum>();
+                groups.put(datum.getDimensions(), group);
+            }
+            group.add(datum);
+        }
+        return groups;
+    }
+
+    /**
+     * @return if the datum's name is also a key its document has for something else
+     */
+    private static boolean clashesWithKey(MetricDatum datum) {
+        String name = datum.getMetricName();
+        if ("_aws".equals(name)) {
+            return true;
+        }
+        for (Dimension dimension : datum.getDimensions()) {
+            if (name.equals(dimension.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends the datums, which share their dimensions, as one or more documents. A metric can only appear once in a
+     * document, so a repeated name starts a new one.
+     */
+    private void appendDocuments(List<MetricDatum> group) {
+        Set<String> names = new HashSet<String>();
+        int start = 0;
+        for (int i = 0; i <= group.size(); i++) {
+            if (i == group.size() || i - start == MAX_METRICS || !names.add(group.get(i).getMetricName())) {
+                if (i > start) {
+                    appendDocument(group.subList(start, i));
+                }
+                start = i;
+                names.clear();
+                if (i < group.size()) {
+                    names.add(group.get(i).getMetricName());
+                }
+            }
+        }
+    }
+
+    private void appendDocument(List<MetricDatum> datums) {
+        MetricDatum first = datums.get(0);
+        long timestamp = first.getTimestamp() == null ? System.currentTimeMillis() : first.getTimestamp().getTime();
+        json.append("{\"_aws\":{\"Timestamp\":").append(timestamp)
+            .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        appendString(namespace);
+        json.append(",\"Dimensions\":[[");
+        List<Dimension> dimensions = first.getDimensions();
+        for (int i = 0; i < dimensions.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendString(dimensions.get(i).getName());
+        }
+        json.append("]],\"Metrics\":[");
+        for (int i = 0; i < datums.size(); i++) {
+            MetricDatum datum = datums.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"Name\":");
+            appendString(datum.getMetricName());
+            if (datum.getUnit() != null) {
+                json.append(",\"Unit\":");
+                appendString(datum.getUnit());
+            }
+            if (datum instanceof ExtendedDatum && ((ExtendedDatum) datum).getStorageResolution() != null) {
+                json.append(",\"StorageResolution\":").append(((ExtendedDatum) datum).getStorageResolution());
+            }
+            json.append('}');
+        }
+        json.append("]}]}");
+        for (Dimension dimension : dimensions) {
+            json.append(',');
+            appendString(dimension.getName());
+            json.append(':');
+            appendString(dimension.getValue());
+        }
+        for (MetricDatum datum : datums) {
+            json.append(',');
+            appendString(datum.getMetricName());
+            json.append(':').append(datum.getValue().doubleValue());
+        }
+        json.append("}\n");
+    }
+
+    private void appendString(String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append("\\u00");
+                json.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Encodes the JSON as UTF-8 into the byte buffer, growing it if needed.
+     *
+     * @return the number of bytes
+     */
+    private int encode() {
+        // No character takes more than three bytes; a surrogate pair takes four for its two characters
+        if (bytes.length < json.length() * 3) {
+            bytes = new byte[Math.max(json.length() * 3, bytes.length * 2)];
+        }
+        int length = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < json.length()
+                       && Character.isLowSurrogate(json.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, json.charAt(++i));
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate can't be encoded
+                bytes[length++] = '?';
+            } else {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * A write that has already failed.
+     */
+    private static class FailedWrite implements Future<Object> {
+        private final ExecutionException failure;
+
+        FailedWrite(IOException cause) {
+            this.failure = new ExecutionException(cause);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Object get() throws ExecutionException {
+            throw failure;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws ExecutionException {
+            throw failure;
+        }
+    }
+}
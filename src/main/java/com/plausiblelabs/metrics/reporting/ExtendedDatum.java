@@ -0,0 +1,152 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.util.TimingInfo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>A datum with the <code>PutMetricData</code> fields added since the SDK's <code>MetricDatum</code> was
+ * generated:</p>
+ *
+ * <ul>
+ * <li><code>StorageResolution</code>, which is 1 for a metric CloudWatch should store at one second resolution
+ * rather than one minute, so it can be graphed and alarmed on at periods down to a second.</li>
+ * <li><code>Values</code> and <code>Counts</code>, up to 150 distinct values each seen a number of times. CloudWatch
+ * keeps these rather than a summary, so it can compute percentiles across every instance sending them.</li>
+ * </ul>
+ *
+ * <p>The fields are added to the request's parameters by {@link ParameterHandler} before the SDK signs it. The
+ * handler must be added to the client sending these datums.</p>
+ *
+ * <p>Only the reporter creates these. A {@link MetricSink} can read the fields of the datums it's given, but must not
+ * change the arrays returned.</p>
+ */
+public class ExtendedDatum extends MetricDatum {
+    /** The most distinct values CloudWatch accepts in a datum */
+    static final int MAX_VALUES = 150;
+    /** The storage resolution of a high resolution metric, in seconds */
+    static final int HIGH_RESOLUTION = 1;
+
+    private Integer storageResolution;
+    private double[] values;
+    private double[] counts;
+
+    ExtendedDatum() {
+    }
+
+    /**
+     * @return 1 for a high resolution metric, or null for the standard one minute resolution
+     */
+    public Integer getStorageResolution() {
+        return storageResolution;
+    }
+
+    ExtendedDatum withStorageResolution(Integer storageResolution) {
+        this.storageResolution = storageResolution;
+        return this;
+    }
+
+    /**
+     * @return the distinct values of a distribution, or null if the datum isn't one
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return how many times each of the {@link #getValues values} was seen, or null if the datum isn't a
+     * distribution
+     */
+    public double[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Sets the values and how many times each was seen. The arrays are kept rather than copied.
+     */
+    ExtendedDatum withValues(double[] values, double[] counts) {
+        if (values.length != counts.length || values.length > MAX_VALUES) {
+            throw new IllegalArgumentException("Need matching values and counts, at most " + MAX_VALUES);
+        }
+        this.values = values;
+        this.counts = counts;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj) || !(obj instanceof ExtendedDatum)) {
+            return false;
+        }
+        ExtendedDatum other = (ExtendedDatum) obj;
+        return (storageResolution == null ? other.storageResolution == null : storageResolution.equals(other.storageResolution))
+            && Arrays.equals(values, other.values)
+            && Arrays.equals(counts, other.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = super.hashCode();
+        hashCode = 31 * hashCode + (storageResolution == null ? 0 : storageResolution.hashCode());
+        hashCode = 31 * hashCode + Arrays.hashCode(values);
+        return 31 * hashCode + Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(super.toString());
+        // Drop the closing brace to add the fields
+        sb.setLength(sb.length() - 1);
+        if (storageResolution != null) {
+            sb.append("StorageResolution: ").append(storageResolution).append(", ");
+        }
+        if (values != null) {
+            sb.append("Values: ").append(Arrays.toString(values)).append(", ");
+            sb.append("Counts: ").append(Arrays.toString(counts)).append(", ");
+        }
+        return sb.append("}").toString();
+    }
+
+    /**
+     * Adds the fields of every extended datum in a <code>PutMetricData</code> request to its parameters.
+     */
+    static class ParameterHandler implements RequestHandler {
+        @Override
+        public void beforeRequest(Request<?> request) {
+            if (!(request.getOriginalRequest() instanceof PutMetricDataRequest)) {
+                return;
+            }
+            List<MetricDatum> data = ((PutMetricDataRequest) request.getOriginalRequest()).getMetricData();
+            for (int i = 0; i < data.size(); i++) {
+                if (!(data.get(i) instanceof ExtendedDatum)) {
+                    continue;
+                }
+                ExtendedDatum datum = (ExtendedDatum) data.get(i);
+                // Members are numbered from 1
+                String prefix = "MetricData.member." + (i + 1) + ".";
+                if (datum.storageResolution != null) {
+                    request.addParameter(prefix + "StorageResolution", String.valueOf(datum.storageResolution));
+                }
+                if (datum.values != null) {
+                    for (int j = 0; j < datum.values.length; j++) {
+                        request.addParameter(prefix + "Values.member." + (j + 1), String.valueOf(datum.values[j]));
+                        request.addParameter(prefix + "Counts.member." + (j + 1), String.valueOf(datum.counts[j]));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void afterResponse(Request<?> request, Object response, TimingInfo timingInfo) {
+        }
+
+        @Override
+        public void afterError(Request<?> request, Exception e) {
+        }
+    }
+}
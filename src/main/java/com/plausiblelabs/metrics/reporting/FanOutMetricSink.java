@@ -0,0 +1,121 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A sink that writes every batch to each of several sinks. A batch only counts as written once every sink has
+ * written it.
+ */
+public class FanOutMetricSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(FanOutMetricSink.class);
+
+    private final List<MetricSink> sinks;
+
+    public FanOutMetricSink(MetricSink... sinks) {
+        this(Arrays.asList(sinks));
+    }
+
+    public FanOutMetricSink(List<MetricSink> sinks) {
+        this.sinks = new ArrayList<MetricSink>(sinks);
+    }
+
+    @Override
+    public Future<?> write(List<MetricDatum> datums) {
+        List<Future<?>> writes = new ArrayList<Future<?>>(sinks.size());
+        for (MetricSink sink : sinks) {
+            Future<?> write = sink.write(datums);
+            if (write != null) {
+                writes.add(write);
+            }
+        }
+        return writes.isEmpty() ? null : new AllWritten(writes);
+    }
+
+    @Override
+    public void flush() {
+        for (MetricSink sink : sinks) {
+            sink.flush();
+        }
+    }
+
+    /**
+     * Closes every sink, even if some fail to close.
+     */
+    @Override
+    public void close() {
+        for (MetricSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to close " + sink, e);
+            }
+        }
+    }
+
+    /**
+     * The outcome of a batch written to several sinks: done once they're all done, and failed if any of them failed.
+     */
+    private static class AllWritten implements Future<Object> {
+        private final List<Future<?>> writes;
+
+        AllWritten(List<Future<?>> writes) {
+            this.writes = writes;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = false;
+            for (Future<?> write : writes) {
+                cancelled |= write.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            for (Future<?> write : writes) {
+                if (write.isCancelled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            for (Future<?> write : writes) {
+                if (!write.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Future<?> write : writes) {
+                write.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return null;
+        }
+    }
+}
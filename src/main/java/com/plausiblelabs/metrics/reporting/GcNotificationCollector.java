@@ -0,0 +1,226 @@
+package com.plausiblelabs.metrics.reporting;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * <p>Accumulates garbage collection pauses as the JVM reports them through the GC notifications emitted by each
+ * <code>GarbageCollectorMXBean</code>, rather than polling cumulative totals at tick boundaries. For every collector it
+ * counts pauses, their total time and the longest pause; it also sums the bytes promoted into old generation pools
+ * by young collections, and keeps each pool's usage before and after the latest collection.</p>
+ *
+ * <p>Concurrent collectors, such as CMS, ZGC and Shenandoah, also report cycles that mostly ran alongside the
+ * application. Their duration is wall time rather than time the application was stopped, so they're counted as
+ * concurrent cycles apart from the pauses. G1's concurrent collector only reports its remark and cleanup pauses, which
+ * do stop the application.</p>
+ *
+ * <p>Notifications arrive on a JMX thread, so everything is kept in atomics that the reporting thread drains once
+ * per tick. The notification payload is read as open data rather than through <code>com.sun.management</code>
+ * classes, so this loads on any JVM; it only collects anything on JVMs that emit the notifications (HotSpot 7u4 and
+ * later).</p>
+ */
+class GcNotificationCollector implements NotificationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(GcNotificationCollector.class);
+
+    static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    /**
+     * Pause and concurrent cycle totals for one collector. The counts are drained with <code>getAndSet(0)</code> each
+     * tick.
+     */
+    static class CollectorStats {
+        final String pausesName, pauseTimeName, maxPauseName, cyclesName, cycleTimeName;
+        final AtomicLong pauses = new AtomicLong();
+        final AtomicLong pauseMillis = new AtomicLong();
+        final AtomicLong maxPauseMillis = new AtomicLong();
+        final AtomicLong cycles = new AtomicLong();
+        final AtomicLong cycleMillis = new AtomicLong();
+        // Set once the collector has reported a concurrent cycle, so collectors without them send no cycle values
+        volatile boolean concurrent;
+
+        CollectorStats(String name) {
+            String prefix = "jvm.gc." + VirtualMachineMetrics.sanitize(name);
+            this.pausesName = prefix + ".pauses";
+            this.pauseTimeName = prefix + ".pause_time";
+            this.maxPauseName = prefix + ".max_pause";
+            this.cyclesName = prefix + ".concurrent_cycles";
+            this.cycleTimeName = prefix + ".concurrent_cycle_time";
+        }
+
+        void recordCycle(long durationMillis) {
+            concurrent = true;
+            cycles.incrementAndGet();
+            cycleMillis.addAndGet(durationMillis);
+        }
+
+        void record(long durationMillis) {
+            pauses.incrementAndGet();
+            pauseMillis.addAndGet(durationMillis);
+            long max;
+            do {
+                max = maxPauseMillis.get();
+            } while (durationMillis > max && !maxPauseMillis.compareAndSet(max, durationMillis));
+        }
+    }
+
+    /**
+     * A memory pool's usage around the latest collection, or -1 before any collection has touched it.
+     */
+    static class PoolStats {
+        final String usedBeforeName, usedAfterName;
+        final AtomicLong usedBefore = new AtomicLong(-1);
+        final AtomicLong usedAfter = new AtomicLong(-1);
+
+        PoolStats(String name) {
+            String prefix = "jvm.gc.pool." + VirtualMachineMetrics.sanitize(name);
+            this.usedBeforeName = prefix + ".used_before";
+            this.usedAfterName = prefix + ".used_after";
+        }
+    }
+
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+    private final ConcurrentMap<String, CollectorStats> collectors = new ConcurrentHashMap<String, CollectorStats>();
+    private final ConcurrentMap<String, PoolStats> pools = new ConcurrentHashMap<String, PoolStats>();
+    private final AtomicLong promotedBytes = new AtomicLong();
+
+    /**
+     * Starts listening to every garbage collector that emits notifications.
+     *
+     * @return the collector, or null if no garbage collector emits notifications on this JVM
+     */
+    static GcNotificationCollector install() {
+        GcNotificationCollector collector = new GcNotificationCollector();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                collector.collectorStats(gc.getName());
+                ((NotificationEmitter) gc).addNotificationListener(collector, null, null);
+                collector.emitters.add((NotificationEmitter) gc);
+            }
+        }
+        if (collector.emitters.isEmpty()) {
+            LOG.info("No garbage collector emits notifications; GC pauses will be polled instead");
+            return null;
+        }
+        return collector;
+    }
+
+    void uninstall() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignored) {
+                // Already removed
+            }
+        }
+        emitters.clear();
+    }
+
+    Collection<CollectorStats> getCollectors() {
+        return collectors.values();
+    }
+
+    Collection<PoolStats> getPools() {
+        return pools.values();
+    }
+
+    /**
+     * @return the bytes promoted since the last call
+     */
+    long drainPromotedBytes() {
+        return promotedBytes.getAndSet(0);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GC_NOTIFICATION.equals(notification.getType())
+                || !(notification.getUserData() instanceof CompositeData)) {
+            return;
+        }
+        try {
+            record((CompositeData) notification.getUserData());
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to read GC notification", e);
+        }
+    }
+
+    private void record(CompositeData data) {
+        String name = (String) data.get("gcName");
+        String action = (String) data.get("gcAction");
+        CompositeData info = (CompositeData) data.get("gcInfo");
+        long duration = (Long) info.get("duration");
+        if (isConcurrent(name, action, (String) data.get("gcCause"))) {
+            collectorStats(name).recordCycle(duration);
+        } else {
+            collectorStats(name).record(duration);
+        }
+
+        TabularData before = (TabularData) info.get("memoryUsageBeforeGc");
+        TabularData after = (TabularData) info.get("memoryUsageAfterGc");
+        boolean minor = action != null && action.contains("minor");
+        for (Object row : after.values()) {
+            CompositeData afterRow = (CompositeData) row;
+            String pool = (String) afterRow.get("key");
+            long usedAfter = MemoryUsage.from((CompositeData) afterRow.get("value")).getUsed();
+            CompositeData beforeRow = before.get(new Object[] {pool});
+            long usedBefore = beforeRow == null
+                ? usedAfter : MemoryUsage.from((CompositeData) beforeRow.get("value")).getUsed();
+
+            PoolStats stats = poolStats(pool);
+            stats.usedBefore.set(usedBefore);
+            stats.usedAfter.set(usedAfter);
+            // What a young collection adds to the old generation was promoted into it
+            if (minor && isOldGeneration(pool) && usedAfter > usedBefore) {
+                promotedBytes.addAndGet(usedAfter - usedBefore);
+            }
+        }
+    }
+
+    /**
+     * @return if the notification is of a concurrent cycle rather than a pause: CMS reports its background cycles with
+     * the cause <code>No GC</code>, and ZGC and Shenandoah report theirs through a <code>Cycles</code> collector with
+     * the action <code>end of GC cycle</code>
+     */
+    static boolean isConcurrent(String name, String action, String cause) {
+        return "No GC".equals(cause)
+            || (action != null && action.contains("cycle"))
+            || (name != null && name.endsWith("Cycles"));
+    }
+
+    private static boolean isOldGeneration(String pool) {
+        return pool.contains("Old Gen") || pool.contains("Tenured");
+    }
+
+    private CollectorStats collectorStats(String name) {
+        CollectorStats stats = collectors.get(name);
+        if (stats == null) {
+            collectors.putIfAbsent(name, new CollectorStats(name));
+            stats = collectors.get(name);
+        }
+        return stats;
+    }
+
+    private PoolStats poolStats(String name) {
+        PoolStats stats = pools.get(name);
+        if (stats == null) {
+            pools.putIfAbsent(name, new PoolStats(name));
+            stats = pools.get(name);
+        }
+        return stats;
+    }
+}
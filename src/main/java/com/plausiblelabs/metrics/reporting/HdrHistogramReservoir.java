@@ -0,0 +1,158 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A reservoir that records every value into an <a href="http://hdrhistogram.org/">HdrHistogram</a>, so its
+ * percentiles, minimum and maximum are within a fixed relative error of the true values, in a fixed amount of
+ * memory per metric. Use it to build histograms and timers, such as <code>new Timer(new HdrHistogramReservoir())</code>,
+ * and register them with the registry.</p>
+ *
+ * <p>Each snapshot covers the values recorded since the previous snapshot was taken, so a reservoir should only be
+ * read by a single reporter. A snapshot is only valid until the next one is taken, as its histogram is reused to
+ * record the following interval.</p>
+ *
+ * <p>The reporter reads these snapshots directly from the histogram rather than copying their values out.
+ * HdrHistogram is an optional dependency of this library, needed only to use this class.</p>
+ */
+public class HdrHistogramReservoir implements Reservoir {
+    private final Recorder recorder;
+    private final long highestTrackableValue;
+    private Histogram interval;
+
+    /**
+     * Creates a reservoir for timers, tracking durations up to an hour to two significant digits.
+     */
+    public HdrHistogramReservoir() {
+        this(TimeUnit.HOURS.toNanos(1), 2);
+    }
+
+    /**
+     * @param highestTrackableValue the largest value to track. Larger values are recorded as this value.
+     * @param numberOfSignificantValueDigits the precision of the values, from 0 to 5. Each digit takes about ten
+     * times more memory.
+     */
+    public HdrHistogramReservoir(long highestTrackableValue, int numberOfSignificantValueDigits) {
+        this.recorder = new Recorder(highestTrackableValue, numberOfSignificantValueDigits);
+        this.highestTrackableValue = highestTrackableValue;
+    }
+
+    @Override
+    public void update(long value) {
+        recorder.recordValue(Math.max(0, Math.min(value, highestTrackableValue)));
+    }
+
+    /**
+     * @return the number of values in the last snapshot
+     */
+    @Override
+    public synchronized int size() {
+        return interval == null ? 0 : (int) Math.min(Integer.MAX_VALUE, interval.getTotalCount());
+    }
+
+    /**
+     * @return the values recorded since the previous snapshot
+     */
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        return new HdrSnapshot(interval);
+    }
+
+    private static class HdrSnapshot extends Snapshot implements CompactSnapshot {
+        private static final long[] EMPTY = new long[0];
+
+        private final Histogram histogram;
+
+        HdrSnapshot(Histogram histogram) {
+            super(EMPTY);
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            return histogram.getValueAtPercentile(quantile * 100);
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getMaxValue();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getMinValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getStdDeviation();
+        }
+
+        @Override
+        public double getSum() {
+            return histogram.getMean() * histogram.getTotalCount();
+        }
+
+        @Override
+        public boolean addTo(LogLinearBuckets buckets) {
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                long equivalent = histogram.medianEquivalentValue(value.getValueIteratedTo());
+                if (!buckets.add(equivalent, value.getCountAtValueIteratedTo())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Expands the histogram into every value it recorded, each at its bucket's median. Only for callers that
+         * need the values themselves; the reporter doesn't.
+         */
+        @Override
+        public long[] getValues() {
+            long[] values = new long[size()];
+            int i = 0;
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                long equivalent = histogram.medianEquivalentValue(value.getValueIteratedTo());
+                for (long count = 0; count < value.getCountAtValueIteratedTo() && i < values.length; count++) {
+                    values[i++] = equivalent;
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            PrintWriter out = new PrintWriter(output);
+            try {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
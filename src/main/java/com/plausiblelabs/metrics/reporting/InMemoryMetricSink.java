@@ -0,0 +1,54 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A sink that keeps every batch written to it, for tests to check what a reporter sends.
+ */
+public class InMemoryMetricSink implements MetricSink {
+    private final List<List<MetricDatum>> batches = new ArrayList<List<MetricDatum>>();
+
+    @Override
+    public synchronized Future<?> write(List<MetricDatum> datums) {
+        batches.add(Collections.unmodifiableList(new ArrayList<MetricDatum>(datums)));
+        return null;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the batches written so far, in order
+     */
+    public synchronized List<List<MetricDatum>> getBatches() {
+        return new ArrayList<List<MetricDatum>>(batches);
+    }
+
+    /**
+     * @return every datum written so far, in order
+     */
+    public synchronized List<MetricDatum> getDatums() {
+        List<MetricDatum> datums = new ArrayList<MetricDatum>();
+        for (List<MetricDatum> batch : batches) {
+            datums.addAll(batch);
+        }
+        return datums;
+    }
+
+    /**
+     * Forgets the batches written so far.
+     */
+    public synchronized void clear() {
+        batches.clear();
+    }
+}
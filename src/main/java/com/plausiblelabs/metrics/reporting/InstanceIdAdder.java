@@ -21,15 +21,22 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class InstanceIdAdder implements DimensionAdder {
+/**
+ * Adds the EC2 instance id, fetched from the instance metadata endpoint at most once a minute until a fetch succeeds.
+ * Safe to call from several collection threads at once: a due fetch is made by one of them while the rest wait, and
+ * the dimensions are otherwise read without locking.
+ */
+class InstanceIdAdder implements VersionedDimensionAdder {
     private static final Logger LOG = LoggerFactory.getLogger(InstanceIdAdder.class);
 
     private final MetricFilter filter;
 
-    private Collection<Dimension> toSend = Collections.singletonList(new Dimension().withName("InstanceId").withValue("unknown"));
+    private volatile Collection<Dimension> toSend = Collections.singletonList(new Dimension().withName("InstanceId").withValue("unknown"));
+    // Written only while holding the lock, and read without it to skip fetches that aren't due
     private boolean attemptedFetchingInstanceId;
-    private String instanceId;
-    private long lastAttemptMillis;
+    private volatile String instanceId;
+    private volatile long lastAttemptMillis;
+    private volatile long version;
 
     public InstanceIdAdder(MetricFilter filter) {
         this.filter = filter;
@@ -44,9 +51,10 @@ class InstanceIdAdder implements DimensionAdder {
      * Sets the InstanceId dimension sent along with the CloudWatch metrics. This will be found automatically if run
      * on EC2. If run outside EC2, this must be called or no metrics will be sent.
      */
-    private void setInstanceId(String instanceId) {
+    private synchronized void setInstanceId(String instanceId) {
         this.instanceId = instanceId;
         toSend = Collections.singletonList(new Dimension().withName("InstanceId").withValue(instanceId));
+        version++;
     }
 
     private void fetchInstanceId() {
@@ -87,6 +95,28 @@ class InstanceIdAdder implements DimensionAdder {
         }
     }
 
+    private void fetchInstanceIdIfDue() {
+        if (isFetchDue()) {
+            synchronized (this) {
+                // Another thread may have fetched while this one waited
+                if (isFetchDue()) {
+                    fetchInstanceId();
+                }
+            }
+        }
+    }
+
+    private boolean isFetchDue() {
+        return instanceId == null && System.currentTimeMillis() - lastAttemptMillis > 60 * 1000;
+    }
+
+    @Override
+    public long getVersion() {
+        // Give a due fetch the chance to change the id before cached dimensions are reused
+        fetchInstanceIdIfDue();
+        return version;
+    }
+
     @Override
     public Collection<Dimension> generate(String name, Metric metric) {
         if (!filter.matches(name, metric)) {
@@ -97,9 +127,7 @@ class InstanceIdAdder implements DimensionAdder {
 
     @Override
     public Collection<Dimension> generateJVMDimensions() {
-        if (instanceId == null && System.currentTimeMillis() - lastAttemptMillis > 60 * 1000) {
-            fetchInstanceId();
-        }
+        fetchInstanceIdIfDue();
         return toSend;
     }
 }
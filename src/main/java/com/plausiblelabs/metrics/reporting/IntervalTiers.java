@@ -0,0 +1,303 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Assigns metrics to reporting intervals by the first rule whose filter matches them, with unmatched metrics
+ * reported at the reporter's period. The reporter ticks at the greatest common divisor of all the intervals, and on
+ * each tick sends the metrics whose interval divides the tick's time, so tiers that fall due together share
+ * requests.</p>
+ *
+ * <p>Tick times are milliseconds since the epoch on an aligned schedule, and since the reporter started otherwise. A
+ * negative tick time means a tick outside the schedule, such as a direct call to <code>report()</code>, and makes
+ * every tier due.</p>
+ *
+ * <p>Each metric's tier is worked out once, and the metrics due on each combination of tiers are kept in a map built
+ * the first time that combination falls due. Both are rebuilt when a metric is added to or removed from the registry
+ * this is listening to, so a tick otherwise only picks a map. With more than {@link #MAX_CACHED_RULES} rules the
+ * combinations aren't kept, and the metrics due are collected from the kept tiers on each tick instead.</p>
+ */
+class IntervalTiers extends MetricRegistryListener.Base {
+    static final int MAX_CACHED_RULES = 9;
+
+    private final MetricFilter[] filters;
+    private final long[] intervalMillis;
+    // Changed by the registry's threads whenever a metric is added or removed
+    private final AtomicLong registryVersion = new AtomicLong();
+    private volatile boolean listening;
+    private final Due<Gauge> gauges;
+    private final Due<Counter> counters;
+    private final Due<Histogram> histograms;
+    private final Due<Meter> meters;
+    private final Due<Timer> timers;
+
+    IntervalTiers(List<MetricFilter> filters, List<Long> intervalMillis) {
+        this.filters = filters.toArray(new MetricFilter[filters.size()]);
+        this.intervalMillis = new long[intervalMillis.size()];
+        for (int i = 0; i < this.intervalMillis.length; i++) {
+            this.intervalMillis[i] = intervalMillis.get(i);
+        }
+        // Sized by the rules, so made once they're set
+        this.gauges = new Due<Gauge>();
+        this.counters = new Due<Counter>();
+        this.histograms = new Due<Histogram>();
+        this.meters = new Due<Meter>();
+        this.timers = new Due<Timer>();
+    }
+
+    boolean isEmpty() {
+        return filters.length == 0;
+    }
+
+    /**
+     * @return the period to tick at so every tier, and the default interval, falls on a tick
+     */
+    long tickMillis(long defaultIntervalMillis) {
+        long tick = defaultIntervalMillis;
+        for (long interval : intervalMillis) {
+            tick = gcd(tick, interval);
+        }
+        return tick;
+    }
+
+    /**
+     * @return the longest interval any metric is sent at
+     */
+    long longestMillis(long defaultIntervalMillis) {
+        long longest = defaultIntervalMillis;
+        for (long interval : intervalMillis) {
+            longest = Math.max(longest, interval);
+        }
+        return longest;
+    }
+
+    static boolean isDue(long intervalMillis, long tickTime) {
+        return tickTime < 0 || tickTime % intervalMillis == 0;
+    }
+
+    /**
+     * Keeps the metrics due on each tick until the registry's metrics change. Without this, they're worked out from
+     * scratch on every tick.
+     */
+    void listenTo(MetricRegistry registry) {
+        listening = true;
+        registry.addListener(this);
+    }
+
+    void stopListening(MetricRegistry registry) {
+        registry.removeListener(this);
+        listening = false;
+    }
+
+    SortedMap<String, Gauge> dueGauges(SortedMap<String, Gauge> metrics, long tickTime, long defaultIntervalMillis) {
+        return gauges.due(metrics, tickTime, defaultIntervalMillis);
+    }
+
+    SortedMap<String, Counter> dueCounters(SortedMap<String, Counter> metrics, long tickTime,
+                                           long defaultIntervalMillis) {
+        return counters.due(metrics, tickTime, defaultIntervalMillis);
+    }
+
+    SortedMap<String, Histogram> dueHistograms(SortedMap<String, Histogram> metrics, long tickTime,
+                                               long defaultIntervalMillis) {
+        return histograms.due(metrics, tickTime, defaultIntervalMillis);
+    }
+
+    SortedMap<String, Meter> dueMeters(SortedMap<String, Meter> metrics, long tickTime, long defaultIntervalMillis) {
+        return meters.due(metrics, tickTime, defaultIntervalMillis);
+    }
+
+    SortedMap<String, Timer> dueTimers(SortedMap<String, Timer> metrics, long tickTime, long defaultIntervalMillis) {
+        return timers.due(metrics, tickTime, defaultIntervalMillis);
+    }
+
+    /**
+     * @return the index of the first rule matching the metric, or the number of rules if it's sent at the default
+     * interval
+     */
+    private int ruleFor(String name, Metric metric) {
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i].matches(name, metric)) {
+                return i;
+            }
+        }
+        return filters.length;
+    }
+
+    private long intervalOf(int rule, long defaultIntervalMillis) {
+        return rule < intervalMillis.length ? intervalMillis[rule] : defaultIntervalMillis;
+    }
+
+    /**
+     * @return a bit for each rule due at the tick time, and one above them for the default interval. Only used with
+     * at most {@link #MAX_CACHED_RULES} rules.
+     */
+    private int dueRules(long tickTime, long defaultIntervalMillis) {
+        int rules = 0;
+        for (int i = 0; i < intervalMillis.length; i++) {
+            if (isDue(intervalMillis[i], tickTime)) {
+                rules |= 1 << i;
+            }
+        }
+        if (isDue(defaultIntervalMillis, tickTime)) {
+            rules |= 1 << filters.length;
+        }
+        return rules;
+    }
+
+    @Override
+    public void onGaugeAdded(String name, Gauge<?> gauge) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onCounterAdded(String name, Counter counter) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+        registryVersion.incrementAndGet();
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        registryVersion.incrementAndGet();
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    /**
+     * The rule of each metric of one type, and the maps of those due on each combination of rules. Used from the
+     * reporting thread only.
+     */
+    private class Due<T extends Metric> {
+        private final List<String> names = new ArrayList<String>();
+        private final List<T> values = new ArrayList<T>();
+        private int[] rules = new int[16];
+        // Indexed by the bits of the rules due, and filled in as each combination first falls due; null if there are
+        // too many rules to keep them
+        private final SortedMap<String, T>[] byDueRules;
+        private long builtVersion = -1;
+        private long checkedVersion = -1;
+        private long builtDefaultMillis;
+
+        @SuppressWarnings("unchecked")
+        Due() {
+            this.byDueRules = filters.length <= MAX_CACHED_RULES ? new SortedMap[1 << (filters.length + 1)] : null;
+        }
+
+        /**
+         * @return the metrics due at the given tick time, or <code>metrics</code> itself if they all are. The map
+         * returned mustn't be changed.
+         */
+        SortedMap<String, T> due(SortedMap<String, T> metrics, long tickTime, long defaultIntervalMillis) {
+            if (tickTime < 0 || metrics.isEmpty()) {
+                return metrics;
+            }
+            long version = registryVersion.get();
+            if (!listening || version != builtVersion || metrics.size() != names.size()
+                    || defaultIntervalMillis != builtDefaultMillis) {
+                build(metrics);
+                builtDefaultMillis = defaultIntervalMillis;
+                // A metric added or removed while the registry's maps were being read may be missing from these, so
+                // after a change they're built again on the next tick
+                builtVersion = version == checkedVersion ? version : checkedVersion;
+            }
+            checkedVersion = version;
+            if (byDueRules == null) {
+                return collect(tickTime, defaultIntervalMillis);
+            }
+            int dueRules = dueRules(tickTime, defaultIntervalMillis);
+            if (dueRules == byDueRules.length - 1) {
+                return metrics;
+            }
+            SortedMap<String, T> due = byDueRules[dueRules];
+            if (due == null) {
+                due = Collections.unmodifiableSortedMap(collect(tickTime, defaultIntervalMillis));
+                byDueRules[dueRules] = due;
+            }
+            return due;
+        }
+
+        private void build(SortedMap<String, T> metrics) {
+            names.clear();
+            values.clear();
+            if (rules.length < metrics.size()) {
+                rules = new int[Math.max(metrics.size(), rules.length * 2)];
+            }
+            for (Map.Entry<String, T> entry : metrics.entrySet()) {
+                rules[names.size()] = ruleFor(entry.getKey(), entry.getValue());
+                names.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+            if (byDueRules != null) {
+                Arrays.fill(byDueRules, null);
+            }
+        }
+
+        private SortedMap<String, T> collect(long tickTime, long defaultIntervalMillis) {
+            SortedMap<String, T> due = new TreeMap<String, T>();
+            for (int i = 0; i < names.size(); i++) {
+                if (isDue(intervalOf(rules[i], defaultIntervalMillis), tickTime)) {
+                    due.put(names.get(i), values.get(i));
+                }
+            }
+            return due;
+        }
+    }
+}
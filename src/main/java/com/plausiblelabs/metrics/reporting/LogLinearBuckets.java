@@ -0,0 +1,135 @@
+package com.plausiblelabs.metrics.reporting;
+
+/**
+ * <p>Compresses a sorted set of values into at most a given number of distinct values, each with a count, for
+ * sending as an {@link ExtendedDatum}'s values and counts.</p>
+ *
+ * <p>If there are few enough distinct values they're kept exactly. Otherwise values are grouped into log-linear
+ * buckets: each power of two is split into equal-width sub-buckets, and every bucket is represented by the mean of
+ * the values in it. The sub-buckets are halved from 64 per power of two until the buckets fit, so the relative error
+ * of a bucket's representative stays within the width of one sub-bucket, under 2% at the finest.</p>
+ */
+class LogLinearBuckets {
+    private static final int EXACT = -1;
+    private static final int MAX_SUB_BUCKET_BITS = 6;
+
+    /**
+     * Values in ascending order, which can be added to the buckets more than once.
+     */
+    interface SortedValues {
+        /**
+         * Adds every value to the buckets in ascending order, stopping if they're full.
+         *
+         * @return false if the buckets filled up
+         */
+        boolean addTo(LogLinearBuckets buckets);
+    }
+
+    private final double[] values;
+    private final double[] counts;
+    private int size;
+    private int subBucketBits;
+    private long lastKey;
+    private double lastSum;
+
+    LogLinearBuckets(int maxBuckets) {
+        this.values = new double[maxBuckets];
+        this.counts = new double[maxBuckets];
+    }
+
+    /**
+     * Replaces the buckets with those of the given values.
+     *
+     * @param sorted values in ascending order, such as from <code>Snapshot.getValues()</code>
+     * @return the number of buckets
+     */
+    int compress(final long[] sorted) {
+        return compress(new SortedValues() {
+            @Override
+            public boolean addTo(LogLinearBuckets buckets) {
+                for (long value : sorted) {
+                    if (!buckets.add(value, 1)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Replaces the buckets with those of the given values, adding them again with coarser buckets until they fit.
+     *
+     * @return the number of buckets
+     */
+    int compress(SortedValues sorted) {
+        for (int bits = EXACT; ; bits = bits == EXACT ? MAX_SUB_BUCKET_BITS : bits - 1) {
+            size = 0;
+            subBucketBits = bits;
+            // With a sub-bucket per power of two, even every long fits in 129 buckets
+            if (sorted.addTo(this) || bits == 0) {
+                finishBucket();
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Adds <code>count</code> occurrences of the value, which must be at least as large as every value added before.
+     *
+     * @return false if the value needed a new bucket and there wasn't room
+     */
+    boolean add(long value, long count) {
+        long key = bucket(value, subBucketBits);
+        if (size > 0 && key == lastKey) {
+            lastSum += (double) value * count;
+            counts[size - 1] += count;
+            return true;
+        }
+        if (size == values.length) {
+            return false;
+        }
+        finishBucket();
+        lastKey = key;
+        lastSum = (double) value * count;
+        counts[size] = count;
+        size++;
+        return true;
+    }
+
+    private void finishBucket() {
+        if (size > 0) {
+            values[size - 1] = lastSum / counts[size - 1];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    double value(int bucket) {
+        return values[bucket];
+    }
+
+    double count(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @return a key that's the same for values in the same bucket, and increases with the value. With negative
+     * <code>subBucketBits</code>, every value is its own bucket.
+     */
+    static long bucket(long value, int subBucketBits) {
+        if (subBucketBits < 0 || value == 0) {
+            return value;
+        }
+        // Long.MIN_VALUE has no positive counterpart; it shares the next value's bucket
+        long magnitude = value == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(value);
+        int exponent = 63 - Long.numberOfLeadingZeros(magnitude);
+        long offset = magnitude - (1L << exponent);
+        long subBucket = exponent >= subBucketBits
+            ? offset >>> (exponent - subBucketBits) : offset << (subBucketBits - exponent);
+        long key = 1 + ((long) exponent << subBucketBits) + subBucket;
+        return value < 0 ? -key : key;
+    }
+}
@@ -0,0 +1,35 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A sink that only logs each datum at info, so the metrics a reporter would send can be checked before incurring
+ * CloudWatch's charges. With info disabled for this class it discards them, which makes it a no-op sink for
+ * measuring collection alone.
+ */
+public class LoggingMetricSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(LoggingMetricSink.class);
+
+    @Override
+    public Future<?> write(List<MetricDatum> datums) {
+        if (LOG.isInfoEnabled()) {
+            for (MetricDatum datum : datums) {
+                LOG.info("Not sending {}", datum);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
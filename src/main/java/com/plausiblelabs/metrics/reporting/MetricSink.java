@@ -0,0 +1,43 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Where a {@link CloudWatchReporter} sends the datums it collects. By default they're sent to CloudWatch with
+ * <code>PutMetricData</code>; {@link CloudWatchReporter.Enabler#withSink} sends them elsewhere as well, or instead.</p>
+ *
+ * <p>Sinks are only called from the reporting thread. Each tick writes one or more batches, then flushes.</p>
+ *
+ * <p>High resolution datums and distributions are {@link ExtendedDatum}s, whose storage resolution, values and
+ * counts aren't fields of the SDK's <code>MetricDatum</code>; cast to read them.</p>
+ *
+ * <p>The CloudWatch sink isn't created directly, as it's configured by the reporter's {@link
+ * CloudWatchReporter.Enabler} and driven by its ticks. To send to it and to other sinks, add those with
+ * {@link CloudWatchReporter.Enabler#withSink}; the reporter writes each batch to every sink as a
+ * {@link FanOutMetricSink} would.</p>
+ */
+public interface MetricSink {
+    /**
+     * Writes a batch of datums in the reporter's namespace, all with the same timestamp. The write may complete after
+     * this returns. The list is only valid during the call, as the reporter reuses it for the next batch: a sink
+     * that writes later must copy it, though the datums themselves may be kept. The list must not be changed.
+     *
+     * @return the outcome of the write, which must be complete once {@link #flush()} returns, or null if the datums
+     * have already been written. Delta counts only advance once the batch carrying them is written successfully.
+     */
+    Future<?> write(List<MetricDatum> datums);
+
+    /**
+     * Blocks until every batch passed to {@link #write} has been written, or has failed. Failures are logged rather
+     * than thrown.
+     */
+    void flush();
+
+    /**
+     * Releases the sink's resources. Called once the reporter has stopped.
+     */
+    void close();
+}
@@ -0,0 +1,397 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>A local log of <code>PutMetricData</code> requests that couldn't be sent, kept so they can be replayed once
+ * CloudWatch is reachable again. Requests are appended to memory-mapped segment files in the spool directory. A new
+ * segment is started when the current one is full, and the oldest segments are deleted, unreplayed requests and all,
+ * once the spool grows past its size limit.</p>
+ *
+ * <p>Each segment starts with the offset of its first unreplayed record, followed by records of a length and the
+ * encoded request. The length is written after the request, so a record torn by a crash reads as the end of the
+ * segment. Segments left by an earlier process are replayed before newer ones. All methods are thread-safe.</p>
+ */
+class MetricSpool {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricSpool.class);
+
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 4;
+    private static final int LENGTH_BYTES = 4;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    // Oldest first; the last segment is the only one appended to
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private Segment active;
+    private long nextSequence;
+    private long totalBytes;
+    private long evicted;
+    // Where the record last returned by peek was, so remove can tell if it's been evicted since
+    private Segment peekedSegment;
+    private int peekedPos;
+
+    MetricSpool(File directory, int segmentBytes, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+
+        String[] existing = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        long[] sequences = new long[existing.length];
+        for (int i = 0; i < existing.length; i++) {
+            sequences[i] = Long.parseLong(existing[i].substring(PREFIX.length(), existing[i].length() - SUFFIX.length()));
+        }
+        Arrays.sort(sequences);
+        for (long sequence : sequences) {
+            nextSequence = sequence + 1;
+            File file = segmentFile(sequence);
+            if (file.length() < HEADER_BYTES) {
+                // Created but never mapped
+                file.delete();
+                continue;
+            }
+            Segment segment = Segment.open(file);
+            if (segment.isFullyRead()) {
+                segment.delete();
+            } else {
+                segments.add(segment);
+                totalBytes += segment.capacity();
+            }
+        }
+    }
+
+    /**
+     * Adds the request to the end of the spool, evicting the oldest segments if the spool is over its size limit.
+     */
+    synchronized void append(PutMetricDataRequest req) throws IOException {
+        byte[] record = encode(req);
+        if (active == null || !active.hasRoomFor(record.length)) {
+            int size = Math.max(segmentBytes, HEADER_BYTES + LENGTH_BYTES + record.length + LENGTH_BYTES);
+            active = Segment.create(segmentFile(nextSequence++), size);
+            segments.add(active);
+            totalBytes += active.capacity();
+        }
+        active.append(record);
+
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            int dropped = oldest.unreadRecords();
+            if (evicted == 0) {
+                LOG.warn("CloudWatch spool in {} is over {} bytes; dropping the oldest spooled metrics", directory, maxBytes);
+            }
+            evicted += dropped;
+            totalBytes -= oldest.capacity();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * @return the oldest request not yet replayed, or null if the spool is empty. It stays in the spool until
+     * {@link #remove} is called.
+     */
+    synchronized PutMetricDataRequest peek() throws IOException {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.getFirst();
+            byte[] record = oldest.read();
+            if (record != null) {
+                peekedSegment = oldest;
+                peekedPos = oldest.readPos;
+                return decode(record);
+            }
+            if (segments.getFirst() == active) {
+                return null;
+            }
+            removeFirstSegment();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the request last returned by {@link #peek}.
+     */
+    synchronized void remove() {
+        if (segments.isEmpty() || segments.getFirst() != peekedSegment || peekedSegment.readPos != peekedPos) {
+            // Already evicted
+            return;
+        }
+        Segment oldest = segments.getFirst();
+        oldest.advance();
+        if (oldest.isFullyRead() && oldest != active) {
+            removeFirstSegment();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isFullyRead()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of requests dropped because the spool was full
+     */
+    synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    private void removeFirstSegment() {
+        Segment oldest = segments.removeFirst();
+        totalBytes -= oldest.capacity();
+        oldest.delete();
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    static byte[] encode(PutMetricDataRequest req) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(req.getNamespace());
+        out.writeInt(req.getMetricData().size());
+        for (MetricDatum datum : req.getMetricData()) {
+            writeExtension(out, datum);
+            out.writeUTF(datum.getMetricName());
+            writeNullableUTF(out, datum.getUnit());
+            out.writeLong(datum.getTimestamp() == null ? -1 : datum.getTimestamp().getTime());
+            out.writeBoolean(datum.getValue() != null);
+            if (datum.getValue() != null) {
+                out.writeDouble(datum.getValue());
+            }
+            StatisticSet stats = datum.getStatisticValues();
+            out.writeBoolean(stats != null);
+            if (stats != null) {
+                out.writeDouble(stats.getSampleCount());
+                out.writeDouble(stats.getSum());
+                out.writeDouble(stats.getMinimum());
+                out.writeDouble(stats.getMaximum());
+            }
+            List<Dimension> dimensions = datum.getDimensions();
+            out.writeShort(dimensions.size());
+            for (Dimension dimension : dimensions) {
+                out.writeUTF(dimension.getName());
+                out.writeUTF(dimension.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static PutMetricDataRequest decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        PutMetricDataRequest req = new PutMetricDataRequest().withNamespace(in.readUTF());
+        int datums = in.readInt();
+        List<MetricDatum> data = new ArrayList<MetricDatum>(datums);
+        for (int i = 0; i < datums; i++) {
+            MetricDatum datum = readExtension(in);
+            datum.withMetricName(in.readUTF()).withUnit(readNullableUTF(in));
+            long timestamp = in.readLong();
+            if (timestamp >= 0) {
+                datum.setTimestamp(new Date(timestamp));
+            }
+            if (in.readBoolean()) {
+                datum.setValue(in.readDouble());
+            }
+            if (in.readBoolean()) {
+                datum.setStatisticValues(new StatisticSet()
+                    .withSampleCount(in.readDouble())
+                    .withSum(in.readDouble())
+                    .withMinimum(in.readDouble())
+                    .withMaximum(in.readDouble()));
+            }
+            int dimensions = in.readShort();
+            List<Dimension> dims = new ArrayList<Dimension>(dimensions);
+            for (int j = 0; j < dimensions; j++) {
+                dims.add(new Dimension().withName(in.readUTF()).withValue(in.readUTF()));
+            }
+            datum.setDimensions(dims);
+            data.add(datum);
+        }
+        req.setMetricData(data);
+        return req;
+    }
+
+    /**
+     * Writes the fields an {@link ExtendedDatum} adds, or that there aren't any.
+     */
+    private static void writeExtension(DataOutputStream out, MetricDatum datum) throws IOException {
+        out.writeBoolean(datum instanceof ExtendedDatum);
+        if (!(datum instanceof ExtendedDatum)) {
+            return;
+        }
+        ExtendedDatum extended = (ExtendedDatum) datum;
+        out.writeInt(extended.getStorageResolution() == null ? -1 : extended.getStorageResolution());
+        double[] values = extended.getValues();
+        out.writeShort(values == null ? -1 : values.length);
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                out.writeDouble(values[i]);
+                out.writeDouble(extended.getCounts()[i]);
+            }
+        }
+    }
+
+    private static MetricDatum readExtension(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return new MetricDatum();
+        }
+        ExtendedDatum datum = new ExtendedDatum();
+        int storageResolution = in.readInt();
+        if (storageResolution >= 0) {
+            datum.withStorageResolution(storageResolution);
+        }
+        int size = in.readShort();
+        if (size >= 0) {
+            double[] values = new double[size];
+            double[] counts = new double[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = in.readDouble();
+                counts[i] = in.readDouble();
+            }
+            datum.withValues(values, counts);
+        }
+        return datum;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPos;
+        private int writePos;
+
+        private Segment(File file, MappedByteBuffer buffer, int readPos, int writePos) {
+            this.file = file;
+            this.buffer = buffer;
+            this.readPos = readPos;
+            this.writePos = writePos;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            MappedByteBuffer buffer = map(file, size);
+            buffer.putInt(0, HEADER_BYTES);
+            return new Segment(file, buffer, HEADER_BYTES, HEADER_BYTES);
+        }
+
+        static Segment open(File file) throws IOException {
+            MappedByteBuffer buffer = map(file, (int) file.length());
+            int readPos = Math.max(HEADER_BYTES, buffer.getInt(0));
+            // Walk the records to find where the last complete one ends
+            int writePos = HEADER_BYTES;
+            while (writePos + LENGTH_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(writePos);
+                if (length <= 0 || writePos + LENGTH_BYTES + length > buffer.capacity()) {
+                    break;
+                }
+                writePos += LENGTH_BYTES + length;
+            }
+            return new Segment(file, buffer, Math.min(readPos, writePos), writePos);
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping stays valid after the channel is closed
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        boolean hasRoomFor(int recordLength) {
+            // Leave room for a zero length after the record to mark the end
+            return writePos + LENGTH_BYTES + recordLength + LENGTH_BYTES <= buffer.capacity();
+        }
+
+        void append(byte[] record) {
+            buffer.position(writePos + LENGTH_BYTES);
+            buffer.put(record);
+            buffer.putInt(writePos, record.length);
+            writePos += LENGTH_BYTES + record.length;
+        }
+
+        byte[] read() {
+            if (readPos >= writePos) {
+                return null;
+            }
+            byte[] record = new byte[buffer.getInt(readPos)];
+            buffer.position(readPos + LENGTH_BYTES);
+            buffer.get(record);
+            return record;
+        }
+
+        void advance() {
+            if (readPos < writePos) {
+                readPos += LENGTH_BYTES + buffer.getInt(readPos);
+                buffer.putInt(0, readPos);
+            }
+        }
+
+        boolean isFullyRead() {
+            return readPos >= writePos;
+        }
+
+        int unreadRecords() {
+            int count = 0;
+            for (int pos = readPos; pos < writePos; pos += LENGTH_BYTES + buffer.getInt(pos)) {
+                count++;
+            }
+            return count;
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                LOG.warn("Unable to delete CloudWatch spool segment {}", file);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+
+import java.util.List;
+
+/**
+ * <p>Decides when a <code>PutMetricData</code> request is full, keeping a running total of the size of its
+ * form-encoded parameters as datums are added. A request is full once it holds the maximum number of datums, or the
+ * next datum would take it over the maximum number of bytes. The sizes are those of the parameters the SDK and
+ * {@link ExtendedDatum.ParameterHandler} send, plus an allowance for the signing parameters.</p>
+ *
+ * <p>A request only holds datums with the same timestamp, so values from different ticks are never mixed.</p>
+ */
+class PutMetricDataPacker {
+    /** Room left for the signing parameters, including a session token */
+    static final int SIGNING_ALLOWANCE_BYTES = 2048;
+
+    private static final String MEMBER_PREFIX = "MetricData.member.";
+    private static final String LIST_MEMBER = ".member.";
+    // yyyy-MM-ddTHH:mm:ss.SSSZ, with both colons escaped
+    private static final int TIMESTAMP_BYTES = 28;
+
+    private final int maxDatums;
+    private final int maxBytes;
+    private final int requestBytes;
+    private int datums;
+    private int bytes;
+    private long timestamp;
+
+    /**
+     * @param namespace the namespace of every request
+     * @param maxDatums the most datums in a request
+     * @param maxBytes the largest encoded request, including the signing allowance
+     */
+    PutMetricDataPacker(String namespace, int maxDatums, int maxBytes) {
+        this.maxDatums = maxDatums;
+        this.maxBytes = maxBytes;
+        this.requestBytes = "Action=PutMetricData&Version=2010-08-01&Namespace=".length() + encodedLength(namespace);
+        reset();
+    }
+
+    /**
+     * Counts the datum as part of the request if there's room for it. A datum always fits in an empty request, even
+     * if it's larger than the limit on its own.
+     *
+     * @param store the store holding the datum
+     * @param i the datum's index in the store
+     * @return false if the request is full; send it, {@link #reset()} and add the datum again
+     */
+    boolean add(DatumStore store, int i) {
+        if (datums > 0 && (datums == maxDatums || store.timestamp(i) != timestamp)) {
+            return false;
+        }
+        // Members are numbered from 1
+        int size = encodedSize(store, i, datums + 1);
+        if (datums > 0 && bytes + size + SIGNING_ALLOWANCE_BYTES > maxBytes) {
+            return false;
+        }
+        bytes += size;
+        datums++;
+        timestamp = store.timestamp(i);
+        return true;
+    }
+
+    /**
+     * Starts counting a new, empty request.
+     */
+    void reset() {
+        datums = 0;
+        bytes = requestBytes;
+    }
+
+    /**
+     * @return the encoded size of the request's parameters, without the signing parameters
+     */
+    int encodedBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the size of the datum's parameters as the given member of a request, each with its leading '&'
+     */
+    static int encodedSize(DatumStore store, int i, int member) {
+        int prefix = 1 + MEMBER_PREFIX.length() + digits(member) + 1;
+        int size = 0;
+        if (store.name(i) != null) {
+            size += prefix + "MetricName=".length() + encodedLength(store.name(i));
+        }
+        List<Dimension> dimensions = store.dimensions(i);
+        if (dimensions != null) {
+            for (int d = 0; d < dimensions.size(); d++) {
+                Dimension dimension = dimensions.get(d);
+                int dimensionPrefix = prefix + "Dimensions".length() + LIST_MEMBER.length() + digits(d + 1);
+                if (dimension.getName() != null) {
+                    size += dimensionPrefix + ".Name=".length() + encodedLength(dimension.getName());
+                }
+                if (dimension.getValue() != null) {
+                    size += dimensionPrefix + ".Value=".length() + encodedLength(dimension.getValue());
+                }
+            }
+        }
+        size += prefix + "Timestamp=".length() + TIMESTAMP_BYTES;
+        if (store.isValue(i)) {
+            size += prefix + "Value=".length() + encodedLength(store.value(i));
+        } else if (store.isStatistics(i)) {
+            int statisticPrefix = prefix + "StatisticValues.".length();
+            size += statisticPrefix + "SampleCount=".length() + encodedLength(store.value(i));
+            size += statisticPrefix + "Sum=".length() + encodedLength(store.sum(i));
+            size += statisticPrefix + "Minimum=".length() + encodedLength(store.minimum(i));
+            size += statisticPrefix + "Maximum=".length() + encodedLength(store.maximum(i));
+        }
+        if (store.unit(i) != null) {
+            size += prefix + "Unit=".length() + encodedLength(store.unit(i).toString());
+        }
+        if (store.isHighResolution(i)) {
+            size += prefix + "StorageResolution=".length() + digits(ExtendedDatum.HIGH_RESOLUTION);
+        }
+        if (store.isDistribution(i)) {
+            for (int j = 0; j < store.distributionSize(i); j++) {
+                int listPrefix = prefix + LIST_MEMBER.length() + digits(j + 1) + 1;
+                size += listPrefix + "Values".length() + encodedLength(store.distributionValue(i, j));
+                size += listPrefix + "Counts".length() + encodedLength(store.distributionCount(i, j));
+            }
+        }
+        return size;
+    }
+
+    private static int encodedLength(double value) {
+        // Digits, '.', '-' and 'E' are all sent unescaped
+        return Double.toString(value).length();
+    }
+
+    /**
+     * @return the length of the string once form-encoded as UTF-8, as it is in the body of the SDK's requests
+     */
+    static int encodedLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '*' || c == ' ') {
+                // Spaces become '+'
+                length += 1;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // Each half of a surrogate pair is half of a four byte sequence
+                length += 6;
+            } else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+
+    private static int digits(int n) {
+        int digits = n < 0 ? 2 : 1;
+        for (long limit = 10; limit <= Math.abs((long) n); limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+}
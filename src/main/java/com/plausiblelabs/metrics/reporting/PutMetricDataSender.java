@@ -0,0 +1,214 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sink that sends batches to CloudWatch as <code>PutMetricDataRequest</code>s, on a small pool of threads so the reporter can keep collecting metrics
+ * while earlier batches are still on the wire. At most <code>maxInFlight</code> requests are sent concurrently and at
+ * most <code>maxQueued</code> wait behind them; once the queue is full the reporting thread sends the request itself,
+ * which throttles collection to the rate CloudWatch accepts.
+ *
+ * <p>Failed requests are retried according to a {@link RetryPolicy}, but only while the retry can finish before the
+ * deadline set for the current tick, so retries never push a tick past its period. If a spool is configured,
+ * requests that still fail with a retryable error are written to it for later replay rather than dropped.</p>
+ */
+class PutMetricDataSender implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(PutMetricDataSender.class);
+
+    private static final AtomicInteger FACTORY_ID = new AtomicInteger();
+
+    private final String namespace;
+    private final AmazonCloudWatchClient client;
+    private final RetryPolicy retryPolicy;
+    private final SpoolReplayer replayer;
+    private final ReporterMetrics stats;
+    private final ThreadPoolExecutor executor;
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+    private volatile long deadlineMillis = Long.MAX_VALUE;
+
+    /**
+     * @param replayer replays spooled requests, or null to drop requests that can't be sent
+     * @param stats records the sends, or null
+     */
+    PutMetricDataSender(String namespace, AmazonCloudWatchClient client, RetryPolicy retryPolicy,
+                        SpoolReplayer replayer, ReporterMetrics stats, int maxInFlight, int maxQueued) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, got " + maxInFlight);
+        }
+        this.namespace = namespace;
+        this.client = client;
+        this.retryPolicy = retryPolicy;
+        this.replayer = replayer;
+        this.stats = stats;
+        this.executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+                                               new SenderThreadFactory(),
+                                               new RunInCaller());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the time, in milliseconds since the epoch, after which failed requests won't be retried. Applies to
+     * requests already queued as well as those sent later.
+     */
+    void setDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Queues the datums for sending as one request. Must only be called from the reporting thread.
+     *
+     * @return the send's outcome, complete once {@link #flush} returns
+     */
+    @Override
+    public Future<?> write(List<MetricDatum> datums) {
+        final PutMetricDataRequest req = new PutMetricDataRequest().withNamespace(namespace).withMetricData(datums);
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendWithRetries(req);
+                    if (replayer != null) {
+                        replayer.onSendSucceeded();
+                    }
+                } catch (RuntimeException re) {
+                    if (replayer != null && RetryPolicy.isRetryable(re) && spool(req)) {
+                        LOG.warn("Failed writing to CloudWatch; spooled {} values for replay: {}", req.getMetricData().size(), re.getMessage());
+                        if (stats != null) {
+                            stats.datumsSpooled(req.getMetricData().size());
+                        }
+                        return;
+                    }
+                    LOG.warn("Failed writing to CloudWatch: {}", req);
+                    if (stats != null) {
+                        stats.datumsDropped(req.getMetricData().size());
+                    }
+                    throw re;
+                }
+            }
+        });
+        pending.add(future);
+        return future;
+    }
+
+    /**
+     * Blocks until every request passed to {@link #write} has completed. Failures are logged rather than thrown so
+     * one bad batch doesn't hide the outcome of the others.
+     */
+    @Override
+    public void flush() {
+        try {
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Error writing to CloudWatch", e.getCause());
+                    } else {
+                        LOG.warn("Error writing to CloudWatch: {}", e.getCause().getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * @return true if the request was spooled
+     */
+    private boolean spool(PutMetricDataRequest req) {
+        replayer.onSendFailed();
+        try {
+            replayer.getSpool().append(req);
+            return true;
+        } catch (Exception e) {
+            LOG.warn("Unable to spool CloudWatch request", e);
+            return false;
+        }
+    }
+
+    private void sendWithRetries(PutMetricDataRequest req) {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            try {
+                client.putMetricData(req);
+                if (stats != null) {
+                    stats.putAttempted(System.nanoTime() - startNanos, null);
+                }
+                return;
+            } catch (RuntimeException re) {
+                if (stats != null) {
+                    stats.putAttempted(System.nanoTime() - startNanos, re);
+                }
+                if (attempt >= retryPolicy.getMaxAttempts() || !RetryPolicy.isRetryable(re)) {
+                    throw re;
+                }
+                long now = System.currentTimeMillis();
+                long backoff = retryPolicy.backoffMillis(attempt);
+                // Assume the retry takes as long as the attempt that just failed
+                if (now + backoff + (now - start) > deadlineMillis) {
+                    LOG.debug("Not retrying failed CloudWatch request as it wouldn't finish within the reporting period");
+                    throw re;
+                }
+                LOG.debug("Retrying CloudWatch request in {}ms after failure: {}", backoff, re.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw re;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        if (replayer != null) {
+            replayer.shutdown();
+        }
+    }
+
+    /**
+     * Sends on the submitting thread when the queue is full or the pool has been shut down. Unlike
+     * <code>CallerRunsPolicy</code> this also runs after shutdown, so a pending future is never left incomplete.
+     */
+    private static class RunInCaller implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            r.run();
+        }
+    }
+
+    private static class SenderThreadFactory implements ThreadFactory {
+        private final int factoryId = FACTORY_ID.incrementAndGet();
+        private final AtomicInteger threadId = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "cloudwatch-sender-" + factoryId + "-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
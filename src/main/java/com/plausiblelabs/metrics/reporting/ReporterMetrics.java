@@ -0,0 +1,154 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.AmazonServiceException;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reporter's own metrics, kept in a registry of their own so they can be exposed through JMX and sent along with
+ * the application's metrics. Updated from the reporting, collection and sender threads.
+ */
+class ReporterMetrics {
+    static final String PREFIX = "cloudwatch_reporter.";
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Timer tick = registry.timer(PREFIX + "tick");
+    private final Timer collection = registry.timer(PREFIX + "collection");
+    private final Timer sendWait = registry.timer(PREFIX + "send_wait");
+    private final Timer putMetricData = registry.timer(PREFIX + "put_metric_data");
+    private final Histogram batchDatums = registry.histogram(PREFIX + "batch_datums");
+    private final Histogram batchBytes = registry.histogram(PREFIX + "batch_bytes");
+    private final Counter gaugeDatums = registry.counter(PREFIX + "datums.gauges");
+    private final Counter counterDatums = registry.counter(PREFIX + "datums.counters");
+    private final Counter histogramDatums = registry.counter(PREFIX + "datums.histograms");
+    private final Counter meterDatums = registry.counter(PREFIX + "datums.meters");
+    private final Counter timerDatums = registry.counter(PREFIX + "datums.timers");
+    private final Counter jvmDatums = registry.counter(PREFIX + "datums.jvm");
+    private final Counter droppedDatums = registry.counter(PREFIX + "dropped_datums");
+    private final Counter spooledDatums = registry.counter(PREFIX + "spooled_datums");
+    private final Counter clampedTooSmall = registry.counter(PREFIX + "clamped.too_small");
+    private final Counter clampedTooLarge = registry.counter(PREFIX + "clamped.too_large");
+    private final Counter unsendableGauges = registry.counter(PREFIX + "unsendable_gauges");
+    private final Counter truncatedDimensions = registry.counter(PREFIX + "dimensions_truncated");
+    private final Counter droppedSeries = registry.counter(PREFIX + "series.dropped");
+    private final Counter collapsedSeries = registry.counter(PREFIX + "series.collapsed");
+    private volatile long admittedSeries;
+    private volatile long estimatedSeries;
+
+    ReporterMetrics() {
+        registry.register(PREFIX + "series.admitted", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return admittedSeries;
+            }
+        });
+        registry.register(PREFIX + "series.estimated", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return estimatedSeries;
+            }
+        });
+    }
+
+    MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @param collectNanos the time spent reading metrics and queueing their requests
+     * @param sendWaitNanos the time spent waiting for the tick's requests to finish afterwards
+     */
+    void tickCompleted(long collectNanos, long sendWaitNanos) {
+        tick.update(collectNanos + sendWaitNanos, TimeUnit.NANOSECONDS);
+        collection.update(collectNanos, TimeUnit.NANOSECONDS);
+        sendWait.update(sendWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void datumsProduced(Metric metric, long datums) {
+        if (metric instanceof Gauge) {
+            gaugeDatums.inc(datums);
+        } else if (metric instanceof Counter) {
+            counterDatums.inc(datums);
+        } else if (metric instanceof Timer) {
+            timerDatums.inc(datums);
+        } else if (metric instanceof Histogram) {
+            histogramDatums.inc(datums);
+        } else {
+            meterDatums.inc(datums);
+        }
+    }
+
+    void jvmDatumsProduced(long datums) {
+        jvmDatums.inc(datums);
+    }
+
+    void batchSent(int datums, int bytes) {
+        batchDatums.update(datums);
+        batchBytes.update(bytes);
+    }
+
+    /**
+     * Records a single attempt at a <code>PutMetricData</code> call, including each retry.
+     *
+     * @param failure what the attempt failed with, or null if it succeeded
+     */
+    void putAttempted(long nanos, RuntimeException failure) {
+        putMetricData.update(nanos, TimeUnit.NANOSECONDS);
+        if (failure != null) {
+            registry.counter(PREFIX + "failures." + errorClass(failure)).inc();
+        }
+    }
+
+    void datumsDropped(int datums) {
+        droppedDatums.inc(datums);
+    }
+
+    void datumsSpooled(int datums) {
+        spooledDatums.inc(datums);
+    }
+
+    void valueClamped(boolean tooLarge) {
+        (tooLarge ? clampedTooLarge : clampedTooSmall).inc();
+    }
+
+    void unsendableGauge() {
+        unsendableGauges.inc();
+    }
+
+    void dimensionsTruncated() {
+        truncatedDimensions.inc();
+    }
+
+    /**
+     * Counts a datum of a series over the dimension budgets.
+     */
+    void seriesOverBudget(boolean collapsed) {
+        (collapsed ? collapsedSeries : droppedSeries).inc();
+    }
+
+    /**
+     * @param admitted the series within the budgets so far
+     * @param estimated the approximate number of distinct series seen so far, including those over budget
+     */
+    void seriesCounted(long admitted, long estimated) {
+        admittedSeries = admitted;
+        estimatedSeries = estimated;
+    }
+
+    /**
+     * @return CloudWatch's error code for the failure, such as <code>Throttling</code>, or the exception's class
+     * when there isn't one
+     */
+    static String errorClass(RuntimeException failure) {
+        if (failure instanceof AmazonServiceException && ((AmazonServiceException) failure).getErrorCode() != null) {
+            return ((AmazonServiceException) failure).getErrorCode();
+        }
+        return failure.getClass().getSimpleName();
+    }
+}
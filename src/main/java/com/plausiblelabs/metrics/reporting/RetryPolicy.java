@@ -0,0 +1,76 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether and when a failed <code>PutMetricData</code> request is tried again. Throttling, server errors and
+ * failures to reach CloudWatch are retried; anything else, such as data CloudWatch rejected or a client that couldn't
+ * sign or marshal the request, would fail again.
+ * Delays grow exponentially from <code>initialBackoffMillis</code> up to <code>maxBackoffMillis</code>, with half of
+ * each delay randomised so instances that failed together don't retry together.
+ */
+class RetryPolicy {
+    /** Makes a single attempt, as the reporter did before retries were configurable */
+    static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private static final Set<String> RETRYABLE_CODES = new HashSet<String>(Arrays.asList(
+        "Throttling", "ThrottlingException", "RequestLimitExceeded", "ServiceUnavailable", "InternalFailure"));
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random = new Random();
+
+    RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, got " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return true if the failure is transient and the same request may succeed later
+     */
+    static boolean isRetryable(RuntimeException failure) {
+        if (failure instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) failure;
+            return ase.getStatusCode() >= 500 || RETRYABLE_CODES.contains(ase.getErrorCode());
+        }
+        // The client wraps the IOException of a failed connection or read; its other failures are its own
+        if (failure instanceof AmazonClientException) {
+            for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param failedAttempts the number of attempts made so far, at least 1
+     * @return a random delay before the next attempt, between half and all of the exponential backoff for the attempt
+     */
+    long backoffMillis(int failedAttempts) {
+        long ceiling = initialBackoffMillis << Math.min(failedAttempts - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        synchronized (random) {
+            return ceiling / 2 + (long) (random.nextDouble() * (ceiling - ceiling / 2));
+        }
+    }
+}
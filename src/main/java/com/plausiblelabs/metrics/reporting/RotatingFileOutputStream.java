@@ -0,0 +1,90 @@
+package com.plausiblelabs.metrics.reporting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends to a file, renaming it to <code>name.1</code> once it reaches a size and starting a new one. Older files
+ * move up to <code>name.2</code> and so on, and the oldest beyond the number of backups is deleted. Files only rotate
+ * between writes, so each write lands whole in one file.
+ */
+class RotatingFileOutputStream extends OutputStream {
+    private final File file;
+    private final long maxBytes;
+    private final int maxBackups;
+    private FileOutputStream out;
+    private long size;
+
+    /**
+     * @param file the file to append to. Its directory is created if it doesn't exist.
+     * @param maxBytes the size at which the file is rotated
+     * @param maxBackups the number of rotated files to keep
+     */
+    RotatingFileOutputStream(File file, long maxBytes, int maxBackups) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxBackups = maxBackups;
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        size = file.length();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (size > 0 && size + len > maxBytes) {
+            rotate();
+        }
+        out.write(b, off, len);
+        size += len;
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        try {
+            File oldest = backup(maxBackups);
+            if (oldest.exists() && !oldest.delete()) {
+                throw new IOException("Unable to delete " + oldest);
+            }
+            for (int i = maxBackups - 1; i >= 1; i--) {
+                File backup = backup(i);
+                if (backup.exists() && !backup.renameTo(backup(i + 1))) {
+                    throw new IOException("Unable to rename " + backup);
+                }
+            }
+            if (maxBackups > 0 ? !file.renameTo(backup(1)) : !file.delete()) {
+                throw new IOException("Unable to rotate " + file);
+            }
+        } finally {
+            // Keep appending to the current file if it couldn't be rotated
+            open();
+        }
+    }
+
+    private File backup(int index) {
+        return new File(file.getPath() + "." + index);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,71 @@
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The batches sent during a tick, for state that may only be adopted once the batch carrying it has been sent
+ * successfully. Callers number what they add to batches in batch order; each batch records where its entries end.
+ * Not thread safe.
+ */
+class SentBatches {
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private int[] ends = new int[16];
+
+    /**
+     * Marks the end of the current batch, unless no entries were added to it.
+     *
+     * @param future the batch's send, or <code>null</code> if it wasn't sent remotely and counts as delivered
+     * @param end the number of entries added so far this tick
+     */
+    void batchSent(Future<?> future, int end) {
+        int batches = futures.size();
+        if (end > (batches == 0 ? 0 : ends[batches - 1])) {
+            if (batches == ends.length) {
+                ends = Arrays.copyOf(ends, batches * 2);
+            }
+            ends[batches] = end;
+            futures.add(future);
+        }
+    }
+
+    int size() {
+        return futures.size();
+    }
+
+    /**
+     * @return the index after the last entry of the batch
+     */
+    int end(int batch) {
+        return ends[batch];
+    }
+
+    /**
+     * @return if the batch was sent successfully. Must be called once all the tick's sends have completed.
+     */
+    boolean succeeded(int batch) {
+        Future<?> future = futures.get(batch);
+        if (future == null) {
+            return true;
+        }
+        if (!future.isDone() || future.isCancelled()) {
+            return false;
+        }
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void clear() {
+        futures.clear();
+    }
+}
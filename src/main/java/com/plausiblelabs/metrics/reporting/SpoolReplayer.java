@@ -0,0 +1,101 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the requests in a {@link MetricSpool} to CloudWatch on a background thread, oldest first and at most
+ * <code>requestsPerSecond</code> a second. Replay only runs while the reporter's own sends are succeeding, and stops
+ * again as soon as a replayed request fails with a retryable error.
+ */
+class SpoolReplayer implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolReplayer.class);
+
+    private final MetricSpool spool;
+    private final AmazonCloudWatchClient client;
+    private final int requestsPerSecond;
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean healthy;
+
+    SpoolReplayer(MetricSpool spool, AmazonCloudWatchClient client, int requestsPerSecond) {
+        this.spool = spool;
+        this.client = client;
+        this.requestsPerSecond = requestsPerSecond;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cloudwatch-spool-replayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, 1, 1, TimeUnit.SECONDS);
+    }
+
+    MetricSpool getSpool() {
+        return spool;
+    }
+
+    void onSendSucceeded() {
+        healthy = true;
+    }
+
+    void onSendFailed() {
+        healthy = false;
+    }
+
+    @Override
+    public void run() {
+        // Anything thrown would cancel the schedule
+        try {
+            for (int sent = 0; sent < requestsPerSecond && healthy; sent++) {
+                if (!replayOne()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error replaying spooled CloudWatch metrics", e);
+        }
+    }
+
+    /**
+     * @return true if there may be more to replay
+     */
+    private boolean replayOne() {
+        PutMetricDataRequest req;
+        try {
+            req = spool.peek();
+        } catch (IOException e) {
+            LOG.warn("Dropping unreadable spooled CloudWatch request", e);
+            spool.remove();
+            return true;
+        }
+        if (req == null) {
+            return false;
+        }
+        try {
+            client.putMetricData(req);
+        } catch (RuntimeException re) {
+            if (RetryPolicy.isRetryable(re)) {
+                healthy = false;
+                return false;
+            }
+            LOG.warn("Dropping spooled CloudWatch request that was rejected: {}", re.getMessage());
+        }
+        spool.remove();
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,147 @@
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from strings to primitive longs. It exists so per-metric state kept across reporting ticks
+ * doesn't box a <code>Long</code> for every metric on every tick. Not thread-safe.
+ */
+class StringLongMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys;
+    private long[] values;
+    private int size;
+
+    StringLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    StringLongMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(String key) {
+        return keys[indexOf(key)] != null;
+    }
+
+    /**
+     * @return the value for the key, or <code>defaultValue</code> if the key isn't present
+     */
+    long get(String key, long defaultValue) {
+        int index = indexOf(key);
+        return keys[index] == null ? defaultValue : values[index];
+    }
+
+    void put(String key, long value) {
+        int index = indexOf(key);
+        if (keys[index] == null) {
+            keys[index] = key;
+            if (++size * 2 > keys.length) {
+                values[index] = value;
+                rehash(keys.length << 1);
+                return;
+            }
+        }
+        values[index] = value;
+    }
+
+    void remove(String key) {
+        int index = indexOf(key);
+        if (keys[index] == null) {
+            return;
+        }
+        keys[index] = null;
+        size--;
+        // Shift later members of the probe sequence back so lookups don't stop at the hole
+        int mask = keys.length - 1;
+        int next = (index + 1) & mask;
+        while (keys[next] != null) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                keys[next] = null;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    /**
+     * Removes the keys whose values are less than <code>min</code>.
+     */
+    void removeValuesBelow(long min) {
+        boolean removed = false;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && values[i] < min) {
+                keys[i] = null;
+                size--;
+                removed = true;
+            }
+        }
+        if (removed) {
+            // Place the rest again so no probe sequence stops at a hole
+            rehash(keys.length);
+        }
+    }
+
+    /**
+     * Removes the keys that aren't in <code>other</code>.
+     */
+    void retainKeysOf(StringLongMap other) {
+        boolean removed = false;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && !other.containsKey(keys[i])) {
+                keys[i] = null;
+                size--;
+                removed = true;
+            }
+        }
+        if (removed) {
+            rehash(keys.length);
+        }
+    }
+
+    private int indexOf(String key) {
+        int mask = keys.length - 1;
+        int index = slot(key);
+        while (keys[index] != null && !keys[index].equals(key)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int slot(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new String[capacity];
+        values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Decides whether a value needs sending by comparing it with the last value sent under the same name. Values within
+ * <code>epsilon</code> of the last one are suppressed until <code>heartbeatMillis</code> has passed since the last
+ * send, at which point they're sent anyway so CloudWatch alarms keep receiving data.</p>
+ *
+ * <p>As with {@link CountDeltas}, a value only becomes the one later values are compared with once the batch carrying
+ * it has been sent successfully, so a value from a failed batch is sent again on the next tick even if it hasn't
+ * changed. Names that go unseen for a number of ticks, such as those of removed gauges, are forgotten.</p>
+ *
+ * <p>Not thread-safe.</p>
+ */
+class UnchangedValueFilter {
+    private final double epsilon;
+    private final long heartbeatMillis;
+
+    // Values are stored as their raw long bits to keep the map primitive
+    private final StringLongMap lastValues = new StringLongMap();
+    private final StringLongMap lastSentMillis = new StringLongMap();
+    // The tick each name was last seen in
+    private final StringLongMap lastSeen = new StringLongMap();
+    private long tick;
+    private final SentBatches sent = new SentBatches();
+
+    // Values added to batches this tick, in batch order
+    private String[] names = new String[64];
+    private double[] values = new double[64];
+    private long[] millis = new long[64];
+    private int size;
+
+    private int checked, suppressed;
+
+    UnchangedValueFilter(double epsilon, long heartbeatMillis) {
+        this.epsilon = epsilon;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * @return true if the value should be sent, in which case the caller records it with {@link #pending} once it's
+     * been added to a batch
+     */
+    boolean shouldSend(String name, double value, long nowMillis) {
+        checked++;
+        lastSeen.put(name, tick);
+        if (lastSentMillis.containsKey(name)
+                && nowMillis - lastSentMillis.get(name, 0) < heartbeatMillis
+                && Math.abs(value - Double.longBitsToDouble(lastValues.get(name, 0))) <= epsilon) {
+            suppressed++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that the value read at <code>nowMillis</code> was added to the current batch under the given name.
+     */
+    void pending(String name, double value, long nowMillis) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            millis = Arrays.copyOf(millis, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        millis[size] = nowMillis;
+        size++;
+    }
+
+    /**
+     * Marks the end of the current batch.
+     *
+     * @param future the batch's send, or <code>null</code> if it wasn't sent remotely and counts as delivered
+     */
+    void batchSent(Future<?> future) {
+        sent.batchSent(future, size);
+    }
+
+    /**
+     * Adopts the values from every successfully sent batch as those later values are compared with and resets for
+     * the next tick. Must be called once all the tick's sends have completed.
+     *
+     * @param keepTicks how many ticks, including this one, a name is kept without being seen
+     */
+    void commit(int keepTicks) {
+        int start = 0;
+        for (int batch = 0; batch < sent.size(); batch++) {
+            int end = sent.end(batch);
+            if (sent.succeeded(batch)) {
+                for (int i = start; i < end; i++) {
+                    lastValues.put(names[i], Double.doubleToRawLongBits(values[i]));
+                    lastSentMillis.put(names[i], millis[i]);
+                }
+            }
+            start = end;
+        }
+        sent.clear();
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        lastSeen.removeValuesBelow(tick - keepTicks + 1);
+        lastValues.retainKeysOf(lastSeen);
+        lastSentMillis.retainKeysOf(lastSeen);
+        tick++;
+    }
+
+    /**
+     * @return the percentage of values suppressed since the last call to {@link #resetTick}, or 0 if none were checked
+     */
+    double suppressedPercent() {
+        return checked == 0 ? 0 : 100.0 * suppressed / checked;
+    }
+
+    void resetTick() {
+        checked = 0;
+        suppressed = 0;
+    }
+}
@@ -0,0 +1,13 @@
+package com.plausiblelabs.metrics.reporting;
+
+/**
+ * A {@link DimensionAdder} whose output can change over its lifetime. When dimension caching is enabled through
+ * {@link CloudWatchReporter.Enabler#withDimensionCache}, plain adders are assumed to always return the same dimensions
+ * for a metric, and only adders implementing this interface can cause cached dimensions to be regenerated.
+ */
+public interface VersionedDimensionAdder extends DimensionAdder {
+    /**
+     * @return a number that increases whenever this adder's dimensions may differ from those it returned before
+     */
+    long getVersion();
+}
@@ -3,16 +3,26 @@
  */
 package com.plausiblelabs.metrics.reporting;
 
-import com.codahale.metrics.Gauge;
-import com.codahale.metrics.Metric;
-import com.codahale.metrics.jvm.GarbageCollectorMetricSet;
-import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
-import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
+ * Reads JVM memory, thread and garbage collection values from the platform MXBeans. {@link #collect} reads everything
+ * in one pass into a reusable {@link Sample}; the individual accessors read just their own value. Memory pools, buffer
+ * pools and allocated bytes are read into the sample separately, as only some reporters want them.
  *
  * @author mrouaux
  */
@@ -26,108 +36,364 @@ public class VirtualMachineMetrics {
             this.time = time;
             this.runs = runs;
         }
-        
+
         public long getTime(TimeUnit unit) {
             return unit.convert(time, TimeUnit.MILLISECONDS);
         }
-        
+
         public long getRuns() {
             return runs;
         }
     }
-    
-    private static final String JVM_METRIC_HEAP_USAGE = "heap.usage";
-    private static final String JVM_METRIC_NON_HEAP_USAGE = "non-heap.usage";
-    private static final String JVM_METRIC_THREAD_COUNT = "count";
-    private static final String JVM_METRIC_THREAD_DAEMON_COUNT = "daemon.count";
-    
-    private static final String JVM_METRIC_THREAD_STATE_PRE = "";
-    private static final String JVM_METRIC_THREAD_STATE_POST = ".count";
-
-    private GarbageCollectorMetricSet jvmGcMetrics;
-    private MemoryUsageGaugeSet jvmMemoryMetrics;
-    private ThreadStatesGaugeSet jvmThreadMetrics;    
-    
-    private static VirtualMachineMetrics instance;
-    
-    public static VirtualMachineMetrics getInstance() {
-        if(instance == null) {
-            instance = new VirtualMachineMetrics();
+
+    /**
+     * <p>The JVM's values at a point in time, held in primitive fields and arrays so a single instance can be refilled
+     * by {@link VirtualMachineMetrics#collect} on every tick without allocating.</p>
+     *
+     * <p>A sample isn't thread-safe; it should be filled and read by the same thread.</p>
+     */
+    public static class Sample {
+        private static final Thread.State[] STATES = Thread.State.values();
+
+        private double heapUsage;
+        private double nonHeapUsage;
+        private int threadCount;
+        private int daemonThreadCount;
+        private final int[] threadStateCounts = new int[STATES.length];
+        private final String[] gcNames;
+        private final long[] gcTimes;
+        private final long[] gcRuns;
+        private final String[] poolNames;
+        private final long[] poolUsed;
+        private final double[] poolUsage;
+        private final String[] bufferPoolNames;
+        private final long[] bufferPoolCounts;
+        private final long[] bufferPoolUsed;
+        private final long[] bufferPoolCapacities;
+        private long allocatedBytes = -1;
+
+        Sample(String[] gcNames, String[] poolNames, String[] bufferPoolNames) {
+            this.gcNames = gcNames;
+            this.gcTimes = new long[gcNames.length];
+            this.gcRuns = new long[gcNames.length];
+            this.poolNames = poolNames;
+            this.poolUsed = new long[poolNames.length];
+            this.poolUsage = new double[poolNames.length];
+            this.bufferPoolNames = bufferPoolNames;
+            this.bufferPoolCounts = new long[bufferPoolNames.length];
+            this.bufferPoolUsed = new long[bufferPoolNames.length];
+            this.bufferPoolCapacities = new long[bufferPoolNames.length];
+        }
+
+        /** The used heap as a fraction of the maximum heap, or of what's committed if there is no maximum */
+        public double getHeapUsage() {
+            return heapUsage;
+        }
+
+        /** The used non-heap memory as a fraction of its maximum, or of what's committed if there is no maximum */
+        public double getNonHeapUsage() {
+            return nonHeapUsage;
+        }
+
+        public int getThreadCount() {
+            return threadCount;
+        }
+
+        public int getDaemonThreadCount() {
+            return daemonThreadCount;
+        }
+
+        /** The number of live threads in the given state */
+        public int getThreadStateCount(Thread.State state) {
+            return threadStateCounts[state.ordinal()];
+        }
+
+        /** The number of garbage collectors; collectors are identified by index from 0 */
+        public int getGarbageCollectorCount() {
+            return gcNames.length;
+        }
+
+        /** The collector's name, with whitespace replaced by dashes */
+        public String getGarbageCollectorName(int collector) {
+            return gcNames[collector];
+        }
+
+        /** The total time the collector has spent collecting, in milliseconds */
+        public long getGarbageCollectorTime(int collector) {
+            return gcTimes[collector];
+        }
+
+        public long getGarbageCollectorRuns(int collector) {
+            return gcRuns[collector];
+        }
+
+        /** The number of memory pools, such as eden, old generation or metaspace; pools are identified by index from 0 */
+        public int getMemoryPoolCount() {
+            return poolNames.length;
+        }
+
+        /** The pool's name, with whitespace replaced by dashes */
+        public String getMemoryPoolName(int pool) {
+            return poolNames[pool];
+        }
+
+        /** The bytes used in the pool */
+        public long getMemoryPoolUsed(int pool) {
+            return poolUsed[pool];
+        }
+
+        /** The used bytes as a fraction of the pool's maximum, or of what's committed if it has no maximum */
+        public double getMemoryPoolUsage(int pool) {
+            return poolUsage[pool];
         }
-        
-        return instance;
+
+        /** The number of buffer pools, such as direct and mapped; pools are identified by index from 0 */
+        public int getBufferPoolCount() {
+            return bufferPoolNames.length;
+        }
+
+        /** The buffer pool's name, with whitespace replaced by dashes */
+        public String getBufferPoolName(int pool) {
+            return bufferPoolNames[pool];
+        }
+
+        /** The number of buffers in the pool */
+        public long getBufferPoolCount(int pool) {
+            return bufferPoolCounts[pool];
+        }
+
+        /** The bytes of memory the JVM is using for the pool's buffers */
+        public long getBufferPoolUsed(int pool) {
+            return bufferPoolUsed[pool];
+        }
+
+        /** The total capacity of the pool's buffers in bytes */
+        public long getBufferPoolCapacity(int pool) {
+            return bufferPoolCapacities[pool];
+        }
+
+        /**
+         * The bytes allocated on the heap by the JVM's threads so far, or -1 if the JVM can't say. Without a
+         * process-wide counter this only covers live threads, so it can go down when threads end.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+
+    private final MemoryMXBean memory;
+    private final ThreadMXBean threads;
+    private final List<GarbageCollectorMXBean> garbageCollectors;
+    private final String[] gcNames;
+    private final List<MemoryPoolMXBean> memoryPools;
+    private final String[] poolNames;
+    private final List<BufferPoolMXBean> bufferPools;
+    private final String[] bufferPoolNames;
+    // From com.sun.management.ThreadMXBean, when the JVM has it; null otherwise
+    private final Method totalAllocatedBytes;
+    private final Method threadAllocatedBytes;
+
+    private static class InstanceHolder {
+        // Class initialization publishes the instance safely to every thread
+        static final VirtualMachineMetrics INSTANCE = new VirtualMachineMetrics();
+    }
+
+    public static VirtualMachineMetrics getInstance() {
+        return InstanceHolder.INSTANCE;
     }
-    
+
     protected VirtualMachineMetrics() {
-        this.jvmGcMetrics = new GarbageCollectorMetricSet();
-        this.jvmMemoryMetrics = new MemoryUsageGaugeSet();
-        this.jvmThreadMetrics = new ThreadStatesGaugeSet();        
+        this.memory = ManagementFactory.getMemoryMXBean();
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+        this.gcNames = new String[garbageCollectors.size()];
+        for (int i = 0; i < gcNames.length; i++) {
+            gcNames[i] = sanitize(garbageCollectors.get(i).getName());
+        }
+        this.memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+        this.poolNames = new String[memoryPools.size()];
+        for (int i = 0; i < poolNames.length; i++) {
+            poolNames[i] = sanitize(memoryPools.get(i).getName());
+        }
+        this.bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        this.bufferPoolNames = new String[bufferPools.size()];
+        for (int i = 0; i < bufferPoolNames.length; i++) {
+            bufferPoolNames[i] = sanitize(bufferPools.get(i).getName());
+        }
+        this.totalAllocatedBytes = allocationMethod("getTotalThreadAllocatedBytes");
+        this.threadAllocatedBytes = allocationMethod("getThreadAllocatedBytes", long[].class);
+    }
+
+    /**
+     * Looks the method up by name so this loads on JVMs without <code>com.sun.management</code>.
+     */
+    private Method allocationMethod(String name, Class<?>... parameterTypes) {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(threads)) {
+                return null;
+            }
+            Boolean supported = (Boolean) type.getMethod("isThreadAllocatedMemorySupported").invoke(threads);
+            return supported ? type.getMethod(name, parameterTypes) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of a collector or memory pool with whitespace replaced by dashes, for use in metric names
+     */
+    static String sanitize(String name) {
+        return WHITESPACE.matcher(name).replaceAll("-");
+    }
+
+    /**
+     * @return a sample to pass to {@link #collect}
+     */
+    public Sample newSample() {
+        return new Sample(gcNames, poolNames, bufferPoolNames);
+    }
+
+    /**
+     * Reads every JVM value into the given sample, taking a single pass over the threads for all thread states.
+     *
+     * @param sample a sample from {@link #newSample}, overwritten with the current values
+     * @return the sample
+     */
+    public Sample collect(Sample sample) {
+        sample.heapUsage = usage(memory.getHeapMemoryUsage());
+        sample.nonHeapUsage = usage(memory.getNonHeapMemoryUsage());
+        sample.threadCount = threads.getThreadCount();
+        sample.daemonThreadCount = threads.getDaemonThreadCount();
+        countThreadStates(sample.threadStateCounts);
+        for (int i = 0; i < gcNames.length; i++) {
+            GarbageCollectorMXBean gc = garbageCollectors.get(i);
+            sample.gcTimes[i] = gc.getCollectionTime();
+            sample.gcRuns[i] = gc.getCollectionCount();
+        }
+        return sample;
+    }
+
+    /**
+     * Reads the usage of every memory pool into the given sample.
+     *
+     * @return the sample
+     */
+    public Sample collectMemoryPools(Sample sample) {
+        for (int i = 0; i < poolNames.length; i++) {
+            MemoryUsage usage = memoryPools.get(i).getUsage();
+            // Null once a pool is no longer valid
+            sample.poolUsed[i] = usage == null ? 0 : usage.getUsed();
+            sample.poolUsage[i] = usage == null ? 0 : usage(usage);
+        }
+        return sample;
     }
-    
+
+    /**
+     * Reads the direct and mapped buffer pools into the given sample.
+     *
+     * @return the sample
+     */
+    public Sample collectBufferPools(Sample sample) {
+        for (int i = 0; i < bufferPoolNames.length; i++) {
+            BufferPoolMXBean pool = bufferPools.get(i);
+            sample.bufferPoolCounts[i] = pool.getCount();
+            sample.bufferPoolUsed[i] = pool.getMemoryUsed();
+            sample.bufferPoolCapacities[i] = pool.getTotalCapacity();
+        }
+        return sample;
+    }
+
+    /**
+     * Reads the bytes allocated by the JVM's threads into the given sample, preferring the process-wide counter
+     * when the JVM has one over summing the live threads.
+     *
+     * @return the sample
+     */
+    public Sample collectAllocatedBytes(Sample sample) {
+        try {
+            if (totalAllocatedBytes != null) {
+                sample.allocatedBytes = (Long) totalAllocatedBytes.invoke(threads);
+            } else if (threadAllocatedBytes != null) {
+                long total = 0;
+                for (long bytes : (long[]) threadAllocatedBytes.invoke(threads, threads.getAllThreadIds())) {
+                    // -1 for threads that have ended
+                    if (bytes > 0) {
+                        total += bytes;
+                    }
+                }
+                sample.allocatedBytes = total;
+            }
+        } catch (Exception e) {
+            // Allocation measurement was disabled
+            sample.allocatedBytes = -1;
+        }
+        return sample;
+    }
+
+    private static double usage(MemoryUsage usage) {
+        long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+        return max > 0 ? (double) usage.getUsed() / max : 0;
+    }
+
+    private void countThreadStates(int[] counts) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        // Without stack traces, so this is far cheaper than a thread dump
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            // Threads that died since their id was read have no info
+            if (info != null) {
+                counts[info.getThreadState().ordinal()]++;
+            }
+        }
+    }
+
+    /**
+     * @return the used heap as a fraction of the maximum heap, or of what's committed if there is no maximum
+     */
     public double heapUsage() {
-        return ((Double)((Gauge)jvmMemoryMetrics.getMetrics()
-                    .get(JVM_METRIC_HEAP_USAGE)).getValue()).doubleValue();
+        return usage(memory.getHeapMemoryUsage());
     }
 
+    /**
+     * @return the used non-heap memory as a fraction of its maximum, or of what's committed if there is no maximum.
+     * The JVM usually sets no maximum, where Metrics' own gauge would report a negative fraction.
+     */
     public double nonHeapUsage() {
-        return ((Double)((Gauge)jvmMemoryMetrics.getMetrics()
-                    .get(JVM_METRIC_NON_HEAP_USAGE)).getValue()).doubleValue();
+        return usage(memory.getNonHeapMemoryUsage());
     }
-    
+
     public long threadCount() {
-        return ((Integer)((Gauge)jvmThreadMetrics.getMetrics()
-                    .get(JVM_METRIC_THREAD_COUNT)).getValue()).longValue();
+        return threads.getThreadCount();
     }
-    
+
     public long daemonThreadCount() {
-        return ((Integer)((Gauge)jvmThreadMetrics.getMetrics()
-                    .get(JVM_METRIC_THREAD_DAEMON_COUNT)).getValue()).longValue();
+        return threads.getDaemonThreadCount();
     }
-    
+
+    /**
+     * @return the number of live threads in each state
+     */
     public Map<Thread.State, Double> threadStatePercentages() {
-        Map<Thread.State, Double> percentages = new HashMap<Thread.State, Double>();
-        
-        Thread.State[] states = Thread.State.values();
-        for(Thread.State state : states) {
-            String metricName = JVM_METRIC_THREAD_STATE_PRE + 
-                    state.toString().toLowerCase() + JVM_METRIC_THREAD_STATE_POST;
-            
-            double stateCount = ((Integer)((Gauge)jvmThreadMetrics.getMetrics()
-                    .get(metricName)).getValue()).doubleValue();
-                    
-            percentages.put(state, stateCount);
-        }
-        
+        int[] counts = new int[Sample.STATES.length];
+        countThreadStates(counts);
+        Map<Thread.State, Double> percentages = new EnumMap<Thread.State, Double>(Thread.State.class);
+        for (Thread.State state : Sample.STATES) {
+            percentages.put(state, (double) counts[state.ordinal()]);
+        }
         return percentages;
     }
 
     public Map<String, VirtualMachineMetrics.GarbageCollectorStats> garbageCollectors() {
-        Map<String, VirtualMachineMetrics.GarbageCollectorStats> gcStats = 
+        Map<String, VirtualMachineMetrics.GarbageCollectorStats> gcStats =
             new HashMap<String, VirtualMachineMetrics.GarbageCollectorStats>();
-        
-        for(Map.Entry<String, Metric> metric : jvmGcMetrics.getMetrics().entrySet()) {
-            long time = 0;
-            long runs = 0;
-            
-            if(metric.getKey().contains("count")) {
-                runs = ((Long)((Gauge)metric.getValue()).getValue()).longValue();
-            }
-            
-            if(metric.getKey().contains("time")) {
-                time = ((Long)((Gauge)metric.getValue()).getValue()).longValue();
-            }
-            
-            String collectorName = "";
-            String[] vecKey = metric.getKey().split("\\.");
-            if((vecKey != null) && (vecKey.length == 4)) {
-                collectorName = vecKey[2];
-            }
-            
-            VirtualMachineMetrics.GarbageCollectorStats gcStat = 
-                    new VirtualMachineMetrics.GarbageCollectorStats(time, runs);
-            gcStats.put(collectorName, gcStat);
+        for (int i = 0; i < gcNames.length; i++) {
+            GarbageCollectorMXBean gc = garbageCollectors.get(i);
+            gcStats.put(gcNames[i], new GarbageCollectorStats(gc.getCollectionTime(), gc.getCollectionCount()));
         }
-
         return gcStats;
     }
 }
@@ -1,16 +1,38 @@
 package com.plausiblelabs.metrics.reporting;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import static com.codahale.metrics.MetricRegistry.name;
 import com.codahale.metrics.Timer;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import org.junit.Test;
 
@@ -57,6 +79,258 @@ public class CloudWatchReporterTest {
             client.putData.size());
     }
 
+    @Test
+    public void testJVMSample() {
+        VirtualMachineMetrics vm = VirtualMachineMetrics.getInstance();
+        VirtualMachineMetrics.Sample sample = vm.collect(vm.newSample());
+        int inStates = 0;
+        for (Thread.State state : Thread.State.values()) {
+            inStates += sample.getThreadStateCount(state);
+        }
+        assertTrue(inStates > 0);
+        assertTrue(sample.getHeapUsage() > 0);
+        assertEquals(vm.garbageCollectors().size(), sample.getGarbageCollectorCount());
+        for (int i = 0; i < sample.getGarbageCollectorCount(); i++) {
+            assertTrue(vm.garbageCollectors().containsKey(sample.getGarbageCollectorName(i)));
+        }
+    }
+
+    @Test
+    public void testIntervalTiersKeptUntilRegistryChanges() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("fast.a");
+        registry.counter("slow.a");
+        IntervalTiers tiers = new IntervalTiers(Collections.<MetricFilter>singletonList(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return name.startsWith("fast.");
+            }
+        }), Collections.singletonList(100L));
+        tiers.listenTo(registry);
+
+        assertEquals(Collections.singleton("fast.a"), tiers.dueCounters(registry.getCounters(), 100, 400).keySet());
+        SortedMap<String, Counter> due = tiers.dueCounters(registry.getCounters(), 200, 400);
+        assertSame("The due metrics are kept between ticks", due, tiers.dueCounters(registry.getCounters(), 300, 400));
+        assertEquals(2, tiers.dueCounters(registry.getCounters(), 400, 400).size());
+
+        registry.counter("fast.b");
+        tiers.dueCounters(registry.getCounters(), 500, 400);
+        assertEquals(Sets.newHashSet("fast.a", "fast.b"), tiers.dueCounters(registry.getCounters(), 600, 400).keySet());
+        tiers.stopListening(registry);
+    }
+
+    @Test
+    public void testAlignedBoundary() {
+        assertEquals(60000, AlignedScheduler.boundary(60000, 60000, 0));
+        assertEquals(60000, AlignedScheduler.boundary(119999, 60000, 0));
+        // Within the jitter after a boundary, the previous boundary's tick is still due
+        assertEquals(0, AlignedScheduler.boundary(65000, 60000, 7000));
+        assertEquals(60000, AlignedScheduler.boundary(67000, 60000, 7000));
+    }
+
+    @Test
+    public void testAlignedScheduleStampsBoundaries() throws InterruptedException {
+        CloudWatchReporter reporter = enabler.withAlignedSchedule(50, TimeUnit.MILLISECONDS).build();
+        reporter.start(200, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(1000);
+        } finally {
+            reporter.stop();
+        }
+        assertTrue(client.putCount >= 3);
+        for (MetricDatum datum : client.putData) {
+            assertEquals(0, datum.getTimestamp().getTime() % 200);
+        }
+    }
+
+    @Test
+    public void testIntervalTiers() throws InterruptedException {
+        testRegistry.counter("fast.counter").inc();
+        testRegistry.counter("slow.counter").inc();
+        CloudWatchReporter reporter = enabler
+            .withAlignedSchedule(0, TimeUnit.MILLISECONDS)
+            .withInterval(new MetricFilter() {
+                @Override
+                public boolean matches(String name, Metric metric) {
+                    return name.startsWith("fast.");
+                }
+            }, 100, TimeUnit.MILLISECONDS)
+            .build();
+        reporter.start(400, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(1300);
+        } finally {
+            reporter.stop();
+        }
+        int fast = 0, slow = 0, memory = 0;
+        for (MetricDatum datum : client.putData) {
+            if (datum.getMetricName().equals("fast.counter")) {
+                fast++;
+            } else if (datum.getMetricName().equals("slow.counter")) {
+                slow++;
+                assertEquals(0, datum.getTimestamp().getTime() % 400);
+            } else if (datum.getMetricName().equals("jvm.memory.heap_usage")) {
+                memory++;
+            }
+        }
+        assertTrue(slow >= 2);
+        assertEquals(slow, memory);
+        assertTrue(fast > slow);
+    }
+
+    @Test
+    public void testHdrHistogramIntervals() {
+        Timer timer = testRegistry.register("hdr", new Timer(new HdrHistogramReservoir()));
+        for (int i = 1; i <= 1000; i++) {
+            timer.update(i, TimeUnit.MILLISECONDS);
+        }
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withStatisticSets(true).build();
+        reporter.report();
+        StatisticSet stats = client.latestPutByName.get("hdr").getStatisticValues();
+        assertEquals(1000.0, stats.getSampleCount());
+        // Within HdrHistogram's two significant digits
+        assertEquals(500500, stats.getSum(), 500500 * .01);
+        assertEquals(1000, stats.getMaximum(), 10);
+
+        // The next interval only has what was recorded since
+        timer.update(5, TimeUnit.MILLISECONDS);
+        reporter.report();
+        assertEquals(1.0, client.latestPutByName.get("hdr").getStatisticValues().getSampleCount());
+    }
+
+    @Test
+    public void testSubMillisecondStatisticSet() {
+        Timer timer = testRegistry.register("hdr", new Timer(new HdrHistogramReservoir()));
+        for (int i = 0; i < 4; i++) {
+            timer.update(500, TimeUnit.MICROSECONDS);
+        }
+        enabler.withJVMMemory(false).withStatisticSets(true).build().report();
+        StatisticSet stats = client.latestPutByName.get("hdr").getStatisticValues();
+        assertEquals(4.0, stats.getSampleCount());
+        assertEquals("Fractions of a millisecond are kept", 2.0, stats.getSum(), 2.0 * .01);
+        assertEquals(0.5, stats.getMinimum(), 0.5 * .01);
+        assertEquals(0.5, stats.getMaximum(), 0.5 * .01);
+    }
+
+    @Test
+    public void testHdrHistogramPercentiles() {
+        Timer timer = testRegistry.register("hdr", new Timer(new HdrHistogramReservoir()));
+        for (int i = 1; i <= 1000; i++) {
+            timer.update(i, TimeUnit.MILLISECONDS);
+        }
+        enabler.withJVMMemory(false).withOneMinuteRate(false).build().report();
+        assertEquals(990, client.latestPutByName.get("hdr_percentile_0.99").getValue(), 10);
+    }
+
+    @Test
+    public void testParallelCollectionMatchesSerial() {
+        for (int i = 0; i < 300; i++) {
+            testRegistry.timer("timer" + i).update(i, TimeUnit.MILLISECONDS);
+            testRegistry.histogram("histogram" + i).update(i);
+            testRegistry.meter("meter" + i).mark(i);
+        }
+        enabler.withJVMMemory(false).withDeltaCounts(true).withMaxRequestsQueued(1000);
+        enabler.build().report();
+
+        DummyCloudWatchClient parallelClient = new DummyCloudWatchClient();
+        CloudWatchReporter parallel = new CloudWatchReporter.Enabler("testnamespace", parallelClient)
+            .withRegistry(testRegistry).withJVMMemory(false).withDeltaCounts(true).withMaxRequestsQueued(1000)
+            .withParallelCollection(4).build();
+        try {
+            parallel.report();
+        } finally {
+            parallel.stop();
+        }
+
+        assertEquals(client.putData.size(), parallelClient.putData.size());
+        for (int i = 0; i < client.putData.size(); i++) {
+            MetricDatum serial = client.putData.get(i);
+            MetricDatum sharded = parallelClient.putData.get(i);
+            assertEquals(serial.getMetricName(), sharded.getMetricName());
+            assertEquals(serial.getDimensions(), sharded.getDimensions());
+            if (serial.getMetricName().endsWith(".count")) {
+                assertEquals(serial.getValue(), sharded.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testJVMPoolsAndAllocationRate() {
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withJVMMemoryPools(true).withJVMBufferPools(true)
+            .withJVMAllocationRate(true).build();
+        reporter.report();
+        // The rate needs two ticks
+        assertFalse(client.latestPutByName.containsKey("jvm.allocation_rate"));
+        byte[][] garbage = new byte[64][];
+        for (int i = 0; i < garbage.length; i++) {
+            garbage[i] = new byte[1024];
+        }
+        reporter.report();
+
+        VirtualMachineMetrics.Sample sample = VirtualMachineMetrics.getInstance().newSample();
+        for (int i = 0; i < sample.getMemoryPoolCount(); i++) {
+            assertTrue(client.latestPutByName.containsKey("jvm.memory.pool." + sample.getMemoryPoolName(i) + ".used"));
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MetricDatum used = client.latestPutByName.get("jvm.memory.pool." + pool.getName() + ".used");
+            long max = pool.getUsage().getMax();
+            if (used != null && max > 0) {
+                assertEquals("Sent as a percentage", 100 * used.getValue() / max,
+                             client.latestPutByName.get("jvm.memory.pool." + pool.getName() + ".usage").getValue(), .001);
+            }
+        }
+        assertTrue(client.latestPutByName.containsKey("jvm.buffers.direct.capacity"));
+        if (VirtualMachineMetrics.getInstance().collectAllocatedBytes(sample).getAllocatedBytes() >= 0) {
+            assertTrue(client.latestPutByName.get("jvm.allocation_rate").getValue() > 0);
+        }
+    }
+
+    @Test
+    public void testGCNotificationsCounted() throws InterruptedException {
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withJVMGC(true).withJVMGCNotifications(true).build();
+        try {
+            System.gc();
+            // Notifications are delivered asynchronously, and each report only sends what arrived since the last
+            double pauses = 0;
+            for (int attempt = 0; attempt < 50 && pauses == 0; attempt++) {
+                Thread.sleep(100);
+                reporter.report();
+                for (MetricDatum datum : client.latestPutByName.values()) {
+                    if (datum.getMetricName().endsWith(".pauses")) {
+                        pauses += datum.getValue();
+                    }
+                }
+            }
+            assertTrue(pauses > 0);
+            assertTrue(client.latestPutByName.containsKey("jvm.gc.promoted"));
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentCyclesNotPauses() {
+        assertTrue(GcNotificationCollector.isConcurrent("ConcurrentMarkSweep", "end of major GC", "No GC"));
+        assertTrue(GcNotificationCollector.isConcurrent("ZGC Cycles", "end of GC cycle", "Allocation Rate"));
+        assertTrue(GcNotificationCollector.isConcurrent("Shenandoah Cycles", "end of GC cycle", "Concurrent GC"));
+        assertFalse(GcNotificationCollector.isConcurrent("ZGC Pauses", "end of GC pause", "Allocation Rate"));
+        assertFalse(GcNotificationCollector.isConcurrent("ConcurrentMarkSweep", "end of major GC", "System.gc()"));
+        assertFalse(GcNotificationCollector.isConcurrent("G1 Concurrent GC", "end of concurrent GC pause",
+                                                         "G1 Remark"));
+        assertFalse(GcNotificationCollector.isConcurrent("G1 Young Generation", "end of minor GC",
+                                                         "G1 Evacuation Pause"));
+    }
+
+    @Test
+    public void testGarbageCollectorsNamed() {
+        enabler.withJVMMemory(false).withJVMGC(true).build().report();
+        assertEquals(VirtualMachineMetrics.getInstance().newSample().getGarbageCollectorCount() * 2,
+                     client.latestPutByName.size());
+        for (String name : client.latestPutByName.keySet()) {
+            assertFalse(name.startsWith("jvm.gc.."));
+        }
+    }
+
     @Test
     public void testTimer() {
         enabler
@@ -93,6 +367,95 @@ public class CloudWatchReporterTest {
         assertEquals("The recorded minutes were converted to seconds for CloudWatch", 5940.0, percentile999.getValue());
     }
 
+    @Test
+    public void testTimerStatisticSet() {
+        enabler
+            .withJVMMemory(false)
+            .withOneMinuteRate(false)
+            .withTimerSummary(true)
+            .withStatisticSets(true)
+            .withDurationUnit(StandardUnit.Seconds);
+
+        Timer timer = testRegistry.register(name(CloudWatchReporterTest.class, "TestTimer"),
+                                            new Timer(new HdrHistogramReservoir()));
+        for (int i = 1; i <= 100; i++) {
+            timer.update(i, TimeUnit.SECONDS);
+        }
+        enabler.build().report();
+        assertEquals("Percentiles and summary collapse into one datum", 1, client.putData.size());
+        MetricDatum datum = client.putData.get(0);
+        assertEquals(name(CloudWatchReporterTest.class, "TestTimer"), datum.getMetricName());
+        assertEquals(StandardUnit.Seconds.toString(), datum.getUnit());
+        assertEquals(100.0, datum.getStatisticValues().getSampleCount());
+        // Within HdrHistogram's two significant digits
+        assertEquals(5050, datum.getStatisticValues().getSum(), 5050 * .01);
+        assertEquals(1, datum.getStatisticValues().getMinimum(), .01);
+        assertEquals(100, datum.getStatisticValues().getMaximum(), 1);
+    }
+
+    @Test
+    public void testSampledTimerSkipsStatisticSet() {
+        Timer timer = testRegistry.timer(name(CloudWatchReporterTest.class, "TestTimer"));
+        timer.update(1, TimeUnit.SECONDS);
+        enabler.withJVMMemory(false).withOneMinuteRate(false).withStatisticSets(true).build().report();
+        assertEquals("A sampling reservoir falls back to percentiles", 1000,
+                     client.latestPutByName.get(name(CloudWatchReporterTest.class, "TestTimer") + "_percentile_0.99")
+                         .getValue(), .001);
+        assertFalse(client.latestPutByName.containsKey(name(CloudWatchReporterTest.class, "TestTimer")));
+    }
+
+    @Test
+    public void testEmptyHistogramStatisticSetSkipped() {
+        testRegistry.register(name(CloudWatchReporterTest.class, "TestHistogram"),
+                              new Histogram(new HdrHistogramReservoir()));
+        enabler.withJVMMemory(false).withStatisticSets(true).build().report();
+        assertEquals(0, client.putData.size());
+    }
+
+    @Test
+    public void testReporterMetricsRecorded() throws Exception {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        testRegistry.register(name(CloudWatchReporterTest.class, "TestGague"), new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return "A value!";
+            }
+        });
+        AmazonServiceException rejected = new AmazonServiceException("Bad value");
+        rejected.setStatusCode(400);
+        rejected.setErrorCode("InvalidParameterValue");
+        client.failure = rejected;
+        client.failuresToThrow = 1;
+        CloudWatchReporter reporter = enabler.withReporterMetrics(true, false).build();
+        try {
+            reporter.report();
+            MetricRegistry stats = reporter.getReporterMetrics();
+            assertEquals(1, stats.getCounters().get("cloudwatch_reporter.datums.counters").getCount());
+            assertEquals(2, stats.getCounters().get("cloudwatch_reporter.datums.jvm").getCount());
+            assertEquals(1, stats.getCounters().get("cloudwatch_reporter.unsendable_gauges").getCount());
+            assertEquals(1, stats.getCounters().get("cloudwatch_reporter.failures.InvalidParameterValue").getCount());
+            assertEquals(3, stats.getCounters().get("cloudwatch_reporter.dropped_datums").getCount());
+            assertEquals(1, stats.getTimers().get("cloudwatch_reporter.tick").getCount());
+            assertEquals(1, stats.getHistograms().get("cloudwatch_reporter.batch_datums").getCount());
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("cloudwatch-reporter.testnamespace", "name", "cloudwatch_reporter.tick")));
+        } finally {
+            reporter.stop();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+            new ObjectName("cloudwatch-reporter.testnamespace", "name", "cloudwatch_reporter.tick")));
+    }
+
+    @Test
+    public void testReporterMetricsSent() {
+        CloudWatchReporter reporter = enabler.withReporterMetrics(false, true).build();
+        reporter.report();
+        reporter.report();
+        // Counts are sent as totals, like the registry's counters
+        assertEquals(4.0, client.latestPutByName.get("cloudwatch_reporter.datums.jvm").getValue());
+        assertTrue(client.latestPutByName.containsKey("cloudwatch_reporter.put_metric_data.1MinuteRate"));
+    }
+
     @Test
     public void testUnsupportedGaugeType() {
         testRegistry.register(name(CloudWatchReporterTest.class, "TestGague"), new Gauge<String>() {
@@ -117,6 +480,72 @@ public class CloudWatchReporterTest {
         assertEquals(1, client.putData.size());
     }
 
+    @Test
+    public void testUnchangedGaugeSkipped() {
+        final double[] value = {5.0};
+        String gaugeName = name(CloudWatchReporterTest.class, "TestGague");
+        testRegistry.register(gaugeName, new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return value[0];
+            }
+        });
+        CloudWatchReporter reporter = enabler.withJVMMemory(false)
+            .withUnchangedGaugesSkipped(0.1, 1, TimeUnit.HOURS).build();
+        reporter.report();
+        assertTrue(client.latestPutByName.containsKey(gaugeName));
+        assertEquals(0.0, client.latestPutByName.get("cloudwatch_reporter.suppressed_gauges").getValue());
+
+        value[0] = 5.05;
+        client.latestPutByName.clear();
+        reporter.report();
+        assertFalse(client.latestPutByName.containsKey(gaugeName));
+        assertEquals(100.0, client.latestPutByName.get("cloudwatch_reporter.suppressed_gauges").getValue());
+
+        value[0] = 6.0;
+        reporter.report();
+        assertEquals(6.0, client.latestPutByName.get(gaugeName).getValue());
+    }
+
+    @Test
+    public void testUnchangedGaugeResentAfterFailedSend() {
+        String gaugeName = name(CloudWatchReporterTest.class, "TestGague");
+        testRegistry.register(gaugeName, new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 5.0;
+            }
+        });
+        CloudWatchReporter reporter = enabler.withJVMMemory(false)
+            .withUnchangedGaugesSkipped(0.1, 1, TimeUnit.HOURS).build();
+        client.failuresToThrow = 1;
+        reporter.report();
+        assertFalse(client.latestPutByName.containsKey(gaugeName));
+
+        reporter.report();
+        assertEquals("A value whose send failed isn't taken as sent", 5.0,
+                     client.latestPutByName.get(gaugeName).getValue());
+
+        client.latestPutByName.clear();
+        reporter.report();
+        assertFalse(client.latestPutByName.containsKey(gaugeName));
+    }
+
+    @Test
+    public void testUnchangedGaugeHeartbeat() {
+        testRegistry.register(name(CloudWatchReporterTest.class, "TestGague"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 5.0;
+            }
+        });
+        CloudWatchReporter reporter = enabler.withJVMMemory(false)
+            .withUnchangedGaugesSkipped(0, 0, TimeUnit.SECONDS).build();
+        reporter.report();
+        reporter.report();
+        assertEquals("A zero heartbeat resends every tick", 4, client.putData.size());
+    }
+
     @Test
     public void testCounter() {
         Counter counter = testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter"));
@@ -130,6 +559,441 @@ public class CloudWatchReporterTest {
         reporter.report();
         assertEquals(1.0, client.putData.get(0).getValue());
     }
+
+    @Test
+    public void testDeltaCounter() {
+        Counter counter = testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter"));
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true).build();
+        counter.inc(5);
+        reporter.report();
+        assertEquals(5.0, client.putData.get(0).getValue());
+
+        counter.inc(3);
+        client.putData.clear();
+        reporter.report();
+        assertEquals(3.0, client.putData.get(0).getValue());
+
+        client.putData.clear();
+        reporter.report();
+        assertEquals(0.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testDeltaCounterSkipsZeroes() {
+        Counter counter = testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter"));
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true)
+            .withZeroDeltasSkipped(true).build();
+        reporter.report();
+        assertEquals(0, client.putData.size());
+        counter.inc();
+        reporter.report();
+        assertEquals(1, client.putData.size());
+        assertEquals(1.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testDeltaCounterKeepsFailedIncrement() {
+        Counter counter = testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter"));
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true).build();
+        counter.inc(2);
+        client.failuresToThrow = 1;
+        reporter.report();
+        assertEquals(0, client.putData.size());
+
+        counter.inc(4);
+        reporter.report();
+        assertEquals("The failed tick's increment is sent with the next", 6.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testDeltaCounterResetSentWhole() {
+        String counterName = name(CloudWatchReporterTest.class, "TestCounter");
+        testRegistry.counter(counterName).inc(5);
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true).build();
+        reporter.report();
+        assertEquals(5.0, client.putData.get(0).getValue());
+
+        testRegistry.remove(counterName);
+        testRegistry.counter(counterName).inc(2);
+        client.putData.clear();
+        reporter.report();
+        assertEquals("A count below the last sent is a reset", 2.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testDeltaCounterSkippedZeroesKeepLastSent() {
+        Counter counter = testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter"));
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true)
+            .withZeroDeltasSkipped(true).build();
+        counter.inc(5);
+        reporter.report();
+        reporter.report();
+        reporter.report();
+        counter.inc();
+        client.putData.clear();
+        reporter.report();
+        assertEquals(1, client.putData.size());
+        assertEquals("Counters skipped as unchanged aren't forgotten", 1.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testDimensionCache() {
+        final int[] generated = {0};
+        final long[] version = {0};
+        testRegistry.meter(name(CloudWatchReporterTest.class, "TestMeter"));
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDimensionCache(true)
+            .withDimensionAdder(new VersionedDimensionAdder() {
+                @Override
+                public long getVersion() {
+                    return version[0];
+                }
+
+                @Override
+                public Collection<Dimension> generate(String name, Metric metric) {
+                    generated[0]++;
+                    return Collections.singleton(new Dimension().withName("Generation").withValue("" + version[0]));
+                }
+
+                @Override
+                public Collection<Dimension> generateJVMDimensions() {
+                    return Collections.emptyList();
+                }
+            }).build();
+        reporter.report();
+        reporter.report();
+        assertEquals("Dimensions were generated once and reused", 1, generated[0]);
+        MetricDatum rate = client.latestPutByName.get(name(CloudWatchReporterTest.class, "TestMeter") + ".1MinuteRate");
+        assertEquals(2, rate.getDimensions().size());
+        assertEquals("meterUnit", rate.getDimensions().get(1).getName());
+
+        testRegistry.meter(name(CloudWatchReporterTest.class, "OtherMeter"));
+        reporter.report();
+        assertEquals("Only the added metric's dimensions were generated", 2, generated[0]);
+
+        version[0]++;
+        reporter.report();
+        assertEquals("A new adder version regenerates everything", 4, generated[0]);
+        rate = client.latestPutByName.get(name(CloudWatchReporterTest.class, "TestMeter") + ".1MinuteRate");
+        assertEquals("1", rate.getDimensions().get(0).getValue());
+    }
+
+    @Test
+    public void testRetriesTransientFailures() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        client.failuresToThrow = 2;
+        enabler.withJVMMemory(false).withRetries(3, 1, 10, TimeUnit.MILLISECONDS).build().report();
+        assertEquals(3, client.putCount);
+        assertEquals(1, client.putData.size());
+    }
+
+    @Test
+    public void testDoesNotRetryRejectedData() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        AmazonServiceException rejected = new AmazonServiceException("Bad value");
+        rejected.setStatusCode(400);
+        rejected.setErrorCode("InvalidParameterValue");
+        client.failure = rejected;
+        client.failuresToThrow = 2;
+        enabler.withJVMMemory(false).withRetries(3, 1, 10, TimeUnit.MILLISECONDS).build().report();
+        assertEquals(1, client.putCount);
+        assertEquals(0, client.putData.size());
+    }
+
+    @Test
+    public void testDoesNotRetryClientFailures() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        client.failure = new AmazonClientException("Unable to marshall request");
+        client.failuresToThrow = 2;
+        enabler.withJVMMemory(false).withRetries(3, 1, 10, TimeUnit.MILLISECONDS).build().report();
+        assertEquals("Only network failures are transient", 1, client.putCount);
+    }
+
+    @Test
+    public void testRetriesStayWithinPeriod() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        client.failuresToThrow = 2;
+        enabler.withJVMMemory(false).withDelay(50, TimeUnit.MILLISECONDS)
+            .withRetries(3, 1, 1, TimeUnit.MINUTES).build().report();
+        assertEquals("A retry that can't finish in the period isn't made", 1, client.putCount);
+    }
+
+    @Test
+    public void testSpooledFailuresAreReplayed() throws InterruptedException {
+        File spoolDirectory = Files.createTempDir();
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withSpool(spoolDirectory, 1024 * 1024, 10).build();
+        try {
+            client.failuresToThrow = 1;
+            reporter.report();
+            assertEquals(0, client.putData.size());
+
+            // A successful send lets the spooled request be replayed in the background
+            reporter.report();
+            for (int i = 0; i < 50 && client.putCount < 3; i++) {
+                Thread.sleep(100);
+            }
+            synchronized (client) {
+                assertEquals(2, client.putData.size());
+            }
+        } finally {
+            reporter.stop();
+            for (File file : spoolDirectory.listFiles()) {
+                file.delete();
+            }
+            spoolDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testSubMillisecondDistributionValuesKept() {
+        Timer timer = testRegistry.timer("timer");
+        for (int i = 0; i < 30; i++) {
+            timer.update(100 + i * 50, TimeUnit.MICROSECONDS);
+        }
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry).withJVMMemory(false)
+            .withDistributions(true).build().report();
+        ExtendedDatum datum = null;
+        for (MetricDatum sent : sink.getDatums()) {
+            if (sent instanceof ExtendedDatum && ((ExtendedDatum) sent).getValues() != null) {
+                datum = (ExtendedDatum) sent;
+            }
+        }
+        assertEquals(0.1, datum.getValues()[0], 0.01);
+        double count = datum.getCounts()[0];
+        for (int i = 1; i < datum.getValues().length; i++) {
+            assertTrue(datum.getValues()[i] > datum.getValues()[i - 1]);
+            count += datum.getCounts()[i];
+        }
+        assertTrue(datum.getValues()[datum.getValues().length - 1] > 1.5);
+        assertEquals(30.0, count);
+    }
+
+    @Test
+    public void testSinkWithoutClient() {
+        for (int i = 0; i < 25; i++) {
+            testRegistry.counter("counter" + i).inc(i);
+        }
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry).build().report();
+        // 25 counters and the 2 JVM memory values, in requests of at most 20
+        assertEquals(2, sink.getBatches().size());
+        assertEquals(27, sink.getDatums().size());
+    }
+
+    @Test
+    public void testFanOutToCloudWatchAndSinks() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc();
+        InMemoryMetricSink first = new InMemoryMetricSink();
+        InMemoryMetricSink second = new InMemoryMetricSink();
+        enabler.withJVMMemory(false).withSink(first).withSink(second).build().report();
+        assertEquals(1, client.putData.size());
+        assertEquals(client.putData, first.getDatums());
+        assertEquals(client.putData, second.getDatums());
+    }
+
+    @Test
+    public void testDimensionsLimitedToTen() {
+        testRegistry.counter("counter").inc();
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry).withJVMMemory(false)
+            .withDimensionAdder(new DimensionAdder() {
+                @Override
+                public Collection<Dimension> generate(String name, Metric metric) {
+                    List<Dimension> dimensions = new ArrayList<Dimension>();
+                    for (int i = 0; i < 12; i++) {
+                        dimensions.add(new Dimension().withName("Dimension" + i).withValue("value"));
+                    }
+                    return dimensions;
+                }
+
+                @Override
+                public Collection<Dimension> generateJVMDimensions() {
+                    return Collections.emptyList();
+                }
+            }).build().report();
+        assertEquals(10, sink.getDatums().get(0).getDimensions().size());
+        assertEquals("Dimension9", sink.getDatums().get(0).getDimensions().get(9).getName());
+    }
+
+    @Test
+    public void testSeriesOverBudgetDropped() {
+        testRegistry.counter("a").inc();
+        testRegistry.counter("b").inc();
+        int[] requestId = new int[1];
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        CloudWatchReporter reporter = new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry)
+            .withJVMMemory(false).withDimensionAdder(requestIdAdder(requestId)).withSeriesBudgets(2, 100, false)
+            .withReporterMetrics(true, true).build();
+        try {
+            for (requestId[0] = 0; requestId[0] < 5; requestId[0]++) {
+                reporter.report();
+            }
+            // Two series of each counter are admitted, and stay so
+            assertEquals(4, datumsNamed(sink, "a", "b").size());
+            sink.clear();
+            requestId[0] = 1;
+            reporter.report();
+            List<MetricDatum> counts = datumsNamed(sink, "a", "b");
+            assertEquals(2, counts.size());
+            assertEquals("1", counts.get(0).getDimensions().get(0).getValue());
+
+            MetricRegistry stats = reporter.getReporterMetrics();
+            assertEquals(6, stats.getCounters().get("cloudwatch_reporter.series.dropped").getCount());
+            // The reporter's own metrics aren't budgeted, though they carry request ids too
+            long admitted = (Long) stats.getGauges().get("cloudwatch_reporter.series.admitted").getValue();
+            long estimated = (Long) stats.getGauges().get("cloudwatch_reporter.series.estimated").getValue();
+            assertEquals(4, admitted);
+            assertEquals(10, estimated, 1);
+            // The counts as of the previous tick go out with the reporter's other metrics
+            assertEquals((double) admitted,
+                         datumsNamed(sink, "cloudwatch_reporter.series.admitted").get(0).getValue());
+            assertEquals((double) estimated,
+                         datumsNamed(sink, "cloudwatch_reporter.series.estimated").get(0).getValue());
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    private static List<MetricDatum> datumsNamed(InMemoryMetricSink sink, String... names) {
+        List<MetricDatum> datums = new ArrayList<MetricDatum>();
+        for (MetricDatum datum : sink.getDatums()) {
+            if (Arrays.asList(names).contains(datum.getMetricName())) {
+                datums.add(datum);
+            }
+        }
+        return datums;
+    }
+
+    @Test
+    public void testSeriesOverBudgetCollapsed() {
+        testRegistry.counter("a").inc();
+        int[] requestId = new int[1];
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        CloudWatchReporter reporter = new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry)
+            .withJVMMemory(false).withDimensionAdder(requestIdAdder(requestId)).withSeriesBudgets(10, 1, true).build();
+        for (requestId[0] = 0; requestId[0] < 3; requestId[0]++) {
+            reporter.report();
+        }
+        List<MetricDatum> datums = sink.getDatums();
+        assertEquals(3, datums.size());
+        assertEquals("0", datums.get(0).getDimensions().get(0).getValue());
+        assertEquals(new Dimension().withName("Request").withValue("other"), datums.get(1).getDimensions().get(0));
+        assertEquals(datums.get(1).getDimensions(), datums.get(2).getDimensions());
+    }
+
+    @Test
+    public void testInternalSeriesNotBudgeted() {
+        testRegistry.counter("a").inc();
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        CloudWatchReporter reporter = new CloudWatchReporter.Enabler("testnamespace", sink).withRegistry(testRegistry)
+            .withSeriesBudgets(1, 1, false).withReporterMetrics(false, true).build();
+        try {
+            reporter.report();
+            assertEquals(1, datumsNamed(sink, "a").size());
+            assertEquals(1, datumsNamed(sink, "jvm.memory.heap_usage").size());
+            assertEquals(0, reporter.getReporterMetrics().getCounters().get("cloudwatch_reporter.series.dropped")
+                .getCount());
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    private static DimensionAdder requestIdAdder(final int[] requestId) {
+        return new DimensionAdder() {
+            @Override
+            public Collection<Dimension> generate(String name, Metric metric) {
+                return Collections.singleton(new Dimension().withName("Request").withValue("" + requestId[0]));
+            }
+
+            @Override
+            public Collection<Dimension> generateJVMDimensions() {
+                return Collections.emptyList();
+            }
+        };
+    }
+
+    @Test
+    public void testFanOutFailsIfAnySinkFails() {
+        testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter")).inc(3);
+        InMemoryMetricSink sink = new InMemoryMetricSink();
+        client.failuresToThrow = 1;
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDeltaCounts(true).withSink(sink).build();
+        reporter.report();
+        reporter.report();
+        // The count stays unsent until CloudWatch has it, even though the other sink had it the first time
+        assertEquals(3.0, client.latestPutByName.get(name(CloudWatchReporterTest.class, "TestCounter")).getValue());
+        assertEquals(2, sink.getDatums().size());
+    }
+
+    @Test
+    public void testEmbeddedMetricFormat() throws IOException {
+        for (int i = 0; i < 150; i++) {
+            testRegistry.counter("counter" + i).inc(i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        enabler.withJVMMemory(false).withInstanceIdDimension("i-\"1\"")
+            .withEmbeddedMetricFormat(out).build().report();
+        assertEquals(0, client.putCount);
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        // 100 metrics at most in each document
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"_aws\":{\"Timestamp\":"));
+        assertTrue(lines[0].contains("\"Namespace\":\"testnamespace\",\"Dimensions\":[[\"InstanceId\"]]"));
+        assertTrue(lines[0].contains("{\"Name\":\"counter0\",\"Unit\":\"Count\"}"));
+        assertTrue(lines[0].contains(",\"InstanceId\":\"i-\\\"1\\\"\","));
+        assertTrue(lines[1].contains(",\"counter99\":99.0"));
+    }
+
+    @Test
+    public void testEmbeddedMetricNamedAfterDimensionSkipped() throws IOException {
+        testRegistry.counter("InstanceId").inc();
+        testRegistry.counter("counter").inc();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        enabler.withJVMMemory(false).withInstanceIdDimension("i-1").withEmbeddedMetricFormat(out).build().report();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].contains(",\"InstanceId\":\"i-1\","));
+        assertFalse(lines[0].contains("{\"Name\":\"InstanceId\""));
+        assertTrue(lines[0].contains(",\"counter\":1.0"));
+    }
+
+    @Test
+    public void testEmbeddedMetricFileRotated() throws IOException {
+        File directory = Files.createTempDir();
+        File file = new File(directory, "metrics.log");
+        testRegistry.counter("counter").inc();
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withEmbeddedMetricFormat(file, 10, 2).build();
+        try {
+            for (int i = 0; i < 4; i++) {
+                reporter.report();
+            }
+        } finally {
+            reporter.stop();
+        }
+        assertTrue(file.exists());
+        assertTrue(new File(directory, "metrics.log.1").exists());
+        assertTrue(new File(directory, "metrics.log.2").exists());
+        assertFalse(new File(directory, "metrics.log.3").exists());
+        assertEquals(1, Files.readLines(file, Charsets.UTF_8).size());
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testConcurrentSends() {
+        for (int i = 0; i < 95; i++) {
+            testRegistry.counter(name(CloudWatchReporterTest.class, "TestCounter" + i)).inc(i);
+        }
+        enabler.withJVMMemory(false).withMaxRequestsInFlight(4).withMaxRequestsQueued(1).build().report();
+        assertEquals("All batches were sent before report returned", 95, client.putData.size());
+        assertEquals(95, client.latestPutByName.size());
+        assertEquals(94.0, client.latestPutByName.get(name(CloudWatchReporterTest.class, "TestCounter94")).getValue());
+    }
     
     
 }
@@ -0,0 +1,61 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import org.junit.Test;
+
+public class DatumStoreTest {
+    private static final long TIMESTAMP = 1234567890123L;
+    private static final List<Dimension> DIMENSIONS = Arrays.asList(new Dimension().withName("Host").withValue("a"));
+
+    @Test
+    public void testDatumsBuiltAsRead() {
+        DatumStore store = new DatumStore(1);
+        store.addValue(TIMESTAMP, "value", 2.5, StandardUnit.Count, DIMENSIONS, false);
+        store.addStatistics(TIMESTAMP, "statistics", 3, 6, 1, 3, StandardUnit.Milliseconds, DIMENSIONS, true);
+        int distribution = store.addDistribution(TIMESTAMP, "distribution", 2, StandardUnit.None, DIMENSIONS, false);
+        store.setDistributionValue(distribution, 0, 1, 5);
+        store.setDistributionValue(distribution, 1, 10, 2);
+
+        List<MetricDatum> datums = store.subList(0, store.size());
+        assertEquals(3, datums.size());
+        assertEquals(new MetricDatum().withMetricName("value").withValue(2.5).withUnit(StandardUnit.Count)
+                         .withTimestamp(new Date(TIMESTAMP)).withDimensions(DIMENSIONS), datums.get(0));
+        assertEquals(new ExtendedDatum().withStorageResolution(ExtendedDatum.HIGH_RESOLUTION)
+                         .withMetricName("statistics").withUnit(StandardUnit.Milliseconds)
+                         .withStatisticValues(new StatisticSet().withSampleCount(3.0).withSum(6.0).withMinimum(1.0)
+                                                                .withMaximum(3.0))
+                         .withTimestamp(new Date(TIMESTAMP)).withDimensions(DIMENSIONS), datums.get(1));
+        assertEquals(new ExtendedDatum().withValues(new double[] {1, 10}, new double[] {5, 2})
+                         .withMetricName("distribution").withUnit(StandardUnit.None)
+                         .withTimestamp(new Date(TIMESTAMP)).withDimensions(DIMENSIONS), datums.get(2));
+        assertSame(datums.get(0), store.subList(0, 1).get(0));
+    }
+
+    @Test
+    public void testReuseLeavesBuiltDatums() {
+        DatumStore store = new DatumStore(1);
+        store.addValue(TIMESTAMP, "first", 1, StandardUnit.Count, DIMENSIONS, false);
+        int distribution = store.addDistribution(TIMESTAMP, "second", 1, StandardUnit.None, DIMENSIONS, false);
+        store.setDistributionValue(distribution, 0, 7, 1);
+        ExtendedDatum second = (ExtendedDatum) store.datum(distribution);
+
+        store.keepLast();
+        assertEquals(1, store.size());
+        assertSame(second, store.datum(0));
+
+        store.clear();
+        distribution = store.addDistribution(TIMESTAMP, "third", 1, StandardUnit.None, DIMENSIONS, false);
+        store.setDistributionValue(distribution, 0, 8, 3);
+        assertEquals("third", store.datum(0).getMetricName());
+        assertEquals(7.0, second.getValues()[0]);
+        assertEquals(1.0, second.getCounts()[0]);
+    }
+}
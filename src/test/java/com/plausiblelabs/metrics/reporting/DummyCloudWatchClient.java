@@ -4,6 +4,7 @@
 
 package com.plausiblelabs.metrics.reporting;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -19,13 +20,24 @@ import com.google.common.collect.Maps;
 public class DummyCloudWatchClient extends AmazonCloudWatchClient {
     public final List<MetricDatum> putData = Lists.newArrayList();
     public final Map<String, MetricDatum> latestPutByName = Maps.newHashMap();
+    /** The number of upcoming putMetricData calls that will fail instead of recording their data */
+    public int failuresToThrow;
+    /** What's thrown for each of the failuresToThrow */
+    public RuntimeException failure = new AmazonClientException("Dummy failure", new IOException("Connection refused"));
+    /** The number of putMetricData calls made, including failed ones */
+    public int putCount;
 
     public DummyCloudWatchClient() {
         super((AWSCredentials)null);
     }
 
     @Override
-    public void putMetricData(PutMetricDataRequest req) throws AmazonServiceException, AmazonClientException {
+    public synchronized void putMetricData(PutMetricDataRequest req) throws AmazonServiceException, AmazonClientException {
+        putCount++;
+        if (failuresToThrow > 0) {
+            failuresToThrow--;
+            throw failure;
+        }
         putData.addAll(req.getMetricData());
         for (MetricDatum datum : req.getMetricData()) {
             latestPutByName.put(datum.getMetricName(), datum);
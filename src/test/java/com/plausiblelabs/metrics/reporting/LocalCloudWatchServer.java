@@ -0,0 +1,308 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>An HTTP server on localhost that accepts CloudWatch's <code>PutMetricData</code> query protocol and records the
+ * datums it receives. It lets the reporter be exercised through the SDK's real HTTP path without AWS credentials or
+ * network access.</p>
+ *
+ * <p>Latency, throttling, server errors and a request size limit can be configured to see how the reporter copes with
+ * a slow or unhealthy CloudWatch. Failures are injected at random with the configured probabilities.</p>
+ */
+public class LocalCloudWatchServer {
+    private static final String XMLNS = "http://monitoring.amazonaws.com/doc/2010-08-01/";
+
+    private static final Pattern MEMBER = Pattern.compile("MetricData\\.member\\.(\\d+)\\.(.+)");
+    private static final Pattern DIMENSION = Pattern.compile("Dimensions\\.member\\.(\\d+)\\.(Name|Value)");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Random random = new Random(42);
+    private final List<MetricDatum> received = Collections.synchronizedList(new ArrayList<MetricDatum>());
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final AtomicInteger serverErrors = new AtomicInteger();
+    private final AtomicInteger tooLarge = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile double throttledFraction;
+    private volatile double serverErrorFraction;
+    private volatile int maxRequestBytes = Integer.MAX_VALUE;
+
+    public LocalCloudWatchServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new PutMetricDataHandler());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Delays every response by the given time.
+     */
+    public LocalCloudWatchServer withLatency(long latency, TimeUnit unit) {
+        latencyMillis = unit.toMillis(latency);
+        return this;
+    }
+
+    /**
+     * Rejects the given fraction of requests with a 400 <code>Throttling</code> error.
+     */
+    public LocalCloudWatchServer withThrottledFraction(double fraction) {
+        throttledFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Fails the given fraction of requests with a 500 <code>InternalFailure</code> error.
+     */
+    public LocalCloudWatchServer withServerErrorFraction(double fraction) {
+        serverErrorFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Rejects requests with bodies larger than the given size with a 413 <code>RequestEntityTooLarge</code> error.
+     */
+    public LocalCloudWatchServer withMaxRequestBytes(int bytes) {
+        maxRequestBytes = bytes;
+        return this;
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return a client sending to this server. The SDK's own retries are disabled so injected failures reach the
+     * caller.
+     */
+    public AmazonCloudWatchClient createClient() {
+        AmazonCloudWatchClient client = new AmazonCloudWatchClient(new BasicAWSCredentials("local", "local"),
+                                                                   new ClientConfiguration().withMaxErrorRetry(0));
+        client.setEndpoint(getEndpoint());
+        return client;
+    }
+
+    /**
+     * @return a copy of every datum accepted so far, in the order received
+     */
+    public List<MetricDatum> getReceived() {
+        synchronized (received) {
+            return new ArrayList<MetricDatum>(received);
+        }
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public int getThrottledCount() {
+        return throttled.get();
+    }
+
+    public int getServerErrorCount() {
+        return serverErrors.get();
+    }
+
+    public int getTooLargeCount() {
+        return tooLarge.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private boolean inject(double fraction) {
+        synchronized (random) {
+            return fraction > 0 && random.nextDouble() < fraction;
+        }
+    }
+
+    private class PutMetricDataHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                byte[] body = readFully(exchange.getRequestBody());
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                if (body.length > maxRequestBytes) {
+                    tooLarge.incrementAndGet();
+                    respondError(exchange, 413, "Sender", "RequestEntityTooLarge", "Request size exceeded " + maxRequestBytes + " bytes");
+                } else if (inject(throttledFraction)) {
+                    throttled.incrementAndGet();
+                    respondError(exchange, 400, "Sender", "Throttling", "Rate exceeded");
+                } else if (inject(serverErrorFraction)) {
+                    serverErrors.incrementAndGet();
+                    respondError(exchange, 500, "Receiver", "InternalFailure", "Injected failure");
+                } else {
+                    Map<String, String> params = parseForm(new String(body, "UTF-8"));
+                    if (!"PutMetricData".equals(params.get("Action"))) {
+                        respondError(exchange, 400, "Sender", "InvalidAction", "Unsupported action " + params.get("Action"));
+                        return;
+                    }
+                    received.addAll(parseDatums(params));
+                    respond(exchange, 200, "<PutMetricDataResponse xmlns=\"" + XMLNS + "\"><ResponseMetadata><RequestId>"
+                        + UUID.randomUUID() + "</RequestId></ResponseMetadata></PutMetricDataResponse>");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respondError(exchange, 500, "Receiver", "InternalFailure", "Interrupted");
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * @return an {@link ExtendedDatum} if the member has fields the SDK's datum doesn't
+     */
+    private static MetricDatum parseExtension(Map<String, String> member) {
+        if (!member.containsKey("StorageResolution") && !member.containsKey("Values.member.1")) {
+            return new MetricDatum();
+        }
+        ExtendedDatum datum = new ExtendedDatum();
+        if (member.containsKey("StorageResolution")) {
+            datum.withStorageResolution(Integer.valueOf(member.get("StorageResolution")));
+        }
+        int size = 0;
+        while (member.containsKey("Values.member." + (size + 1))) {
+            size++;
+        }
+        if (size > 0) {
+            double[] values = new double[size];
+            double[] counts = new double[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = Double.valueOf(member.get("Values.member." + (i + 1)));
+                counts[i] = Double.valueOf(member.get("Counts.member." + (i + 1)));
+            }
+            datum.withValues(values, counts);
+        }
+        return datum;
+    }
+
+    private static List<MetricDatum> parseDatums(Map<String, String> params) {
+        Map<Integer, Map<String, String>> members = new TreeMap<Integer, Map<String, String>>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            Matcher matcher = MEMBER.matcher(param.getKey());
+            if (matcher.matches()) {
+                Integer index = Integer.valueOf(matcher.group(1));
+                if (!members.containsKey(index)) {
+                    members.put(index, new HashMap<String, String>());
+                }
+                members.get(index).put(matcher.group(2), param.getValue());
+            }
+        }
+
+        List<MetricDatum> datums = new ArrayList<MetricDatum>();
+        for (Map<String, String> member : members.values()) {
+            MetricDatum datum = parseExtension(member);
+            datum.withMetricName(member.get("MetricName"))
+                .withUnit(member.get("Unit"));
+            if (member.containsKey("Value")) {
+                datum.setValue(Double.valueOf(member.get("Value")));
+            }
+            if (member.containsKey("StatisticValues.SampleCount")) {
+                datum.setStatisticValues(new StatisticSet()
+                    .withSampleCount(Double.valueOf(member.get("StatisticValues.SampleCount")))
+                    .withSum(Double.valueOf(member.get("StatisticValues.Sum")))
+                    .withMinimum(Double.valueOf(member.get("StatisticValues.Minimum")))
+                    .withMaximum(Double.valueOf(member.get("StatisticValues.Maximum"))));
+            }
+            Map<Integer, Dimension> dimensions = new TreeMap<Integer, Dimension>();
+            for (Map.Entry<String, String> field : member.entrySet()) {
+                Matcher matcher = DIMENSION.matcher(field.getKey());
+                if (matcher.matches()) {
+                    Integer index = Integer.valueOf(matcher.group(1));
+                    if (!dimensions.containsKey(index)) {
+                        dimensions.put(index, new Dimension());
+                    }
+                    if ("Name".equals(matcher.group(2))) {
+                        dimensions.get(index).setName(field.getValue());
+                    } else {
+                        dimensions.get(index).setValue(field.getValue());
+                    }
+                }
+            }
+            datum.setDimensions(new ArrayList<Dimension>(dimensions.values()));
+            datums.add(datum);
+        }
+        return datums;
+    }
+
+    private static Map<String, String> parseForm(String body) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                           URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String type, String code, String message)
+            throws IOException {
+        respond(exchange, status, "<ErrorResponse xmlns=\"" + XMLNS + "\"><Error><Type>" + type + "</Type><Code>"
+            + code + "</Code><Message>" + message + "</Message></Error><RequestId>" + UUID.randomUUID()
+            + "</RequestId></ErrorResponse>");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] bytes = xml.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.name;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends through the SDK's HTTP path to a {@link LocalCloudWatchServer}.
+ */
+public class LocalCloudWatchTest {
+    private MetricRegistry testRegistry = new MetricRegistry();
+    private LocalCloudWatchServer server;
+    private CloudWatchReporter.Enabler enabler;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalCloudWatchServer();
+        enabler = new CloudWatchReporter.Enabler("testnamespace", server.createClient())
+            .withRegistry(testRegistry)
+            .withJVMMemory(false);
+        for (int i = 0; i < 95; i++) {
+            testRegistry.counter(name(LocalCloudWatchTest.class, "TestCounter" + i)).inc(i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testConcurrentSendsOverHttp() {
+        server.withLatency(50, TimeUnit.MILLISECONDS);
+        enabler.withMaxRequestsInFlight(4).build().report();
+        assertEquals(5, server.getRequestCount());
+        assertEquals(95, server.getReceived().size());
+        for (MetricDatum datum : server.getReceived()) {
+            assertTrue(datum.getMetricName().startsWith(name(LocalCloudWatchTest.class, "TestCounter")));
+            assertEquals("Count", datum.getUnit());
+        }
+    }
+
+    @Test
+    public void testThrottledRequestsAreNotReceived() {
+        server.withThrottledFraction(1);
+        enabler.build().report();
+        assertEquals(5, server.getThrottledCount());
+        assertEquals(0, server.getReceived().size());
+    }
+
+    @Test
+    public void testServerErrorsAreRetried() {
+        server.withServerErrorFraction(.5);
+        enabler.withRetries(10, 1, 5, TimeUnit.MILLISECONDS).build().report();
+        assertTrue(server.getServerErrorCount() > 0);
+        assertEquals(95, server.getReceived().size());
+    }
+
+    @Test
+    public void testHighResolutionOverHttp() {
+        enabler.withHighResolution(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return name.endsWith("TestCounter7");
+            }
+        }, 1, TimeUnit.SECONDS).build().report();
+        assertEquals(95, server.getReceived().size());
+        for (MetricDatum datum : server.getReceived()) {
+            boolean highResolution = datum instanceof ExtendedDatum
+                && Integer.valueOf(ExtendedDatum.HIGH_RESOLUTION).equals(((ExtendedDatum) datum).getStorageResolution());
+            assertEquals(datum.getMetricName().endsWith("TestCounter7"), highResolution);
+        }
+    }
+
+    @Test
+    public void testDistributionOverHttp() {
+        Histogram histogram = testRegistry.histogram(name(LocalCloudWatchTest.class, "TestHistogram"));
+        for (int i = 0; i < 1000; i++) {
+            histogram.update(i * i);
+        }
+        enabler.withDistributions(true).build().report();
+        ExtendedDatum datum = null;
+        for (MetricDatum received : server.getReceived()) {
+            if (received.getMetricName().equals(name(LocalCloudWatchTest.class, "TestHistogram"))) {
+                datum = (ExtendedDatum) received;
+            }
+        }
+        assertTrue(datum.getValues().length <= ExtendedDatum.MAX_VALUES);
+        double count = 0;
+        for (double c : datum.getCounts()) {
+            count += c;
+        }
+        assertEquals(1000.0, count);
+    }
+
+    @Test
+    public void testRequestsFilledToLimits() {
+        enabler.withRequestLimits(1000, 1024 * 1024).build().report();
+        assertEquals(1, server.getRequestCount());
+        assertEquals(95, server.getReceived().size());
+    }
+
+    @Test
+    public void testRequestsSplitToFitByteLimit() {
+        server.withMaxRequestBytes(4096);
+        enabler.withRequestLimits(1000, 4096).build().report();
+        assertEquals(0, server.getTooLargeCount());
+        assertEquals(95, server.getReceived().size());
+        assertTrue(server.getRequestCount() > 1);
+    }
+
+    @Test
+    public void testOversizedRequestsAreRejected() {
+        server.withMaxRequestBytes(1024);
+        enabler.build().report();
+        assertEquals(5, server.getTooLargeCount());
+        assertEquals(0, server.getReceived().size());
+    }
+}
@@ -0,0 +1,58 @@
+package com.plausiblelabs.metrics.reporting;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import org.junit.Test;
+
+public class LogLinearBucketsTest {
+    @Test
+    public void testFewValuesKeptExactly() {
+        LogLinearBuckets buckets = new LogLinearBuckets(150);
+        assertEquals(3, buckets.compress(new long[] {-5, 7, 7, 7, 1000003}));
+        assertEquals(-5.0, buckets.value(0));
+        assertEquals(7.0, buckets.value(1));
+        assertEquals(3.0, buckets.count(1));
+        assertEquals(1000003.0, buckets.value(2));
+    }
+
+    @Test
+    public void testManyValuesBucketedWithinRelativeError() {
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) i * i;
+        }
+        LogLinearBuckets buckets = new LogLinearBuckets(150);
+        int size = buckets.compress(values);
+        assertTrue(size <= 150);
+
+        double count = 0;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            count += buckets.count(i);
+            // Every value in the bucket is within a sub-bucket's width of its representative
+            long first = values[next];
+            next += (int) buckets.count(i);
+            long last = values[next - 1];
+            assertTrue(buckets.value(i) >= first && buckets.value(i) <= last);
+            assertTrue(last - first <= Math.max(1, first / 4));
+        }
+        assertEquals((double) values.length, count);
+    }
+
+    @Test
+    public void testExtremeValuesFit() {
+        long[] values = new long[130];
+        for (int i = 0; i < 63; i++) {
+            values[i] = -(1L << (62 - i));
+            values[66 + i] = 1L << i;
+        }
+        values[63] = -1;
+        values[64] = 0;
+        values[65] = 0;
+        values[129] = Long.MAX_VALUE;
+        java.util.Arrays.sort(values);
+        values[0] = Long.MIN_VALUE;
+        LogLinearBuckets buckets = new LogLinearBuckets(150);
+        assertTrue(buckets.compress(values) <= 150);
+    }
+}
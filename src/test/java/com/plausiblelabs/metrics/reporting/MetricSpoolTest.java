@@ -0,0 +1,86 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricSpoolTest {
+    private File directory = Files.createTempDir();
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static PutMetricDataRequest request(String name, int datums) {
+        PutMetricDataRequest req = new PutMetricDataRequest().withNamespace("testnamespace");
+        for (int i = 0; i < datums; i++) {
+            req.withMetricData(new MetricDatum()
+                .withMetricName(name)
+                .withTimestamp(new Date(1000L * i))
+                .withValue((double) i)
+                .withUnit(StandardUnit.Count)
+                .withDimensions(new Dimension().withName("InstanceId").withValue("flask")));
+        }
+        return req;
+    }
+
+    @Test
+    public void testEncodingRoundTrips() throws IOException {
+        PutMetricDataRequest req = request("TestCounter", 3);
+        req.withMetricData(new MetricDatum()
+            .withMetricName("TestTimer")
+            .withStatisticValues(new StatisticSet().withSampleCount(2.0).withSum(3.0).withMinimum(1.0).withMaximum(2.0)));
+        req.withMetricData(new ExtendedDatum().withStorageResolution(1).withMetricName("TestLatency").withValue(4.0));
+        req.withMetricData(new ExtendedDatum().withValues(new double[] {1, 2}, new double[] {3, 4})
+            .withMetricName("TestDistribution"));
+        PutMetricDataRequest decoded = MetricSpool.decode(MetricSpool.encode(req));
+        assertEquals(req, decoded);
+        assertEquals(req.getMetricData().get(4), decoded.getMetricData().get(4));
+        assertEquals(req.getMetricData().get(5), decoded.getMetricData().get(5));
+    }
+
+    @Test
+    public void testReplaysOldestFirstAcrossRestarts() throws IOException {
+        MetricSpool spool = new MetricSpool(directory, 1024, 1024 * 1024);
+        spool.append(request("First", 2));
+        spool.append(request("Second", 2));
+        assertEquals("First", spool.peek().getMetricData().get(0).getMetricName());
+        spool.remove();
+
+        spool = new MetricSpool(directory, 1024, 1024 * 1024);
+        spool.append(request("Third", 2));
+        assertEquals("Second", spool.peek().getMetricData().get(0).getMetricName());
+        spool.remove();
+        assertEquals("Third", spool.peek().getMetricData().get(0).getMetricName());
+        spool.remove();
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testEvictsOldestWhenFull() throws IOException {
+        MetricSpool spool = new MetricSpool(directory, 1024, 4096);
+        for (int i = 0; i < 100; i++) {
+            spool.append(request("Counter" + i, 5));
+        }
+        assertTrue(spool.getEvictedCount() > 0);
+        assertTrue(directory.listFiles().length <= 4);
+        String oldest = spool.peek().getMetricData().get(0).getMetricName();
+        assertEquals("Counter" + spool.getEvictedCount(), oldest);
+    }
+}
@@ -0,0 +1,78 @@
+package com.plausiblelabs.metrics.reporting;
+
+import com.amazonaws.Request;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.transform.PutMetricDataRequestMarshaller;
+import com.amazonaws.util.HttpUtils;
+import java.util.Arrays;
+import java.util.List;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import org.junit.Test;
+
+public class PutMetricDataPackerTest {
+    private static final long TIMESTAMP = 1234567890123L;
+
+    @Test
+    public void testSizeMatchesEncodedRequest() {
+        PutMetricDataPacker packer = new PutMetricDataPacker("test namespace/~\u00fc", 1000, 1024 * 1024);
+        PutMetricDataRequest request = new PutMetricDataRequest().withNamespace("test namespace/~\u00fc");
+        DatumStore store = new DatumStore(4);
+        for (int i = 0; i < 12; i++) {
+            String name = "metric " + i + " *\u20ac\ud83d\ude00";
+            List<Dimension> dimensions = Arrays.asList(new Dimension().withName("InstanceId").withValue("i-" + i));
+            int datum;
+            if (i % 4 == 1) {
+                datum = store.addStatistics(TIMESTAMP, name, 3.0, 1e-20, -7.5, 123456.0, StandardUnit.BytesSecond,
+                                            dimensions, i % 3 == 0);
+            } else if (i % 3 == 0) {
+                datum = store.addDistribution(TIMESTAMP, name, 3, StandardUnit.BytesSecond, dimensions, true);
+                store.setDistributionValue(datum, 0, 1, 4);
+                store.setDistributionValue(datum, 1, 2.5, 1);
+                store.setDistributionValue(datum, 2, 1e30, 2);
+            } else {
+                datum = store.addValue(TIMESTAMP, name, i / 7.0, StandardUnit.BytesSecond, dimensions, false);
+            }
+            assertTrue(packer.add(store, datum));
+        }
+        request.withMetricData(store.subList(0, store.size()));
+
+        Request<PutMetricDataRequest> marshalled = new PutMetricDataRequestMarshaller().marshall(request);
+        new ExtendedDatum.ParameterHandler().beforeRequest(marshalled);
+        assertEquals(HttpUtils.encodeParameters(marshalled).length(), packer.encodedBytes());
+    }
+
+    @Test
+    public void testFillsToLimits() {
+        DatumStore store = new DatumStore(1);
+        PutMetricDataPacker packer = new PutMetricDataPacker("ns", 3, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(packer.add(store, datum(store, "m" + i, TIMESTAMP)));
+        }
+        assertFalse(packer.add(store, datum(store, "m3", TIMESTAMP)));
+        packer.reset();
+        assertTrue(packer.add(store, store.size() - 1));
+
+        int oneDatum = PutMetricDataPacker.encodedSize(store, datum(store, "m", TIMESTAMP), 1);
+        packer = new PutMetricDataPacker("ns", 1000, PutMetricDataPacker.SIGNING_ALLOWANCE_BYTES + 100 + 2 * oneDatum);
+        assertTrue(packer.add(store, datum(store, "m", TIMESTAMP)));
+        assertTrue(packer.add(store, datum(store, "m", TIMESTAMP)));
+        assertFalse(packer.add(store, datum(store, "m", TIMESTAMP)));
+    }
+
+    @Test
+    public void testTimestampsKeptApart() {
+        DatumStore store = new DatumStore(1);
+        PutMetricDataPacker packer = new PutMetricDataPacker("ns", 1000, 1024 * 1024);
+        assertTrue(packer.add(store, datum(store, "a", TIMESTAMP)));
+        assertTrue(packer.add(store, datum(store, "b", TIMESTAMP)));
+        assertFalse(packer.add(store, datum(store, "c", TIMESTAMP + 60000)));
+    }
+
+    private static int datum(DatumStore store, String name, long timestamp) {
+        return store.addValue(timestamp, name, 1.0, StandardUnit.Count, null, false);
+    }
+}
@@ -0,0 +1,62 @@
+package com.plausiblelabs.metrics.reporting;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import org.junit.Test;
+
+public class StringLongMapTest {
+    @Test
+    public void testPutAndGet() {
+        StringLongMap map = new StringLongMap();
+        assertEquals(-1, map.get("missing", -1));
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, i);
+        }
+        map.put("key7", 70);
+        assertEquals(1000, map.size());
+        assertEquals(70, map.get("key7", -1));
+        assertEquals(999, map.get("key999", -1));
+    }
+
+    @Test
+    public void testRemoveKeepsOtherKeysReachable() {
+        StringLongMap map = new StringLongMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put("key" + i, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            map.remove("key" + i);
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                assertFalse(map.containsKey("key" + i));
+            } else {
+                assertTrue(map.containsKey("key" + i));
+                assertEquals(i, map.get("key" + i, -1));
+            }
+        }
+    }
+
+    @Test
+    public void testPruning() {
+        StringLongMap map = new StringLongMap();
+        StringLongMap keep = new StringLongMap();
+        for (int i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+            if (i % 3 == 0) {
+                keep.put("key" + i, 0);
+            }
+        }
+        map.removeValuesBelow(50);
+        assertEquals(50, map.size());
+        assertFalse(map.containsKey("key49"));
+        assertEquals(50, map.get("key50", -1));
+
+        map.retainKeysOf(keep);
+        assertEquals(17, map.size());
+        assertFalse(map.containsKey("key52"));
+        assertEquals(99, map.get("key99", -1));
+    }
+}